@@ -0,0 +1,158 @@
+/*
+ * Copyright 2016 Camilo Bermúdez
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.huitaca.j4log;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts of the events each logger emitted, per {@link LogLevel}, kept in an
+ * array injected into the logger classes.
+ *
+ * Most loggers never log, the array is only allocated on the first event, as
+ * a single row with one counter per level. Counting an event is a single
+ * compare and set on that row; the first time two threads collide on it the
+ * row is replaced by one row per stripe, each thread then picking its stripe
+ * by id. Arrays are only aligned to 8 bytes, so instead of rows the size of a
+ * cache line the stripes are separated by a whole line of padding, as is the
+ * first one from the array header: no two stripes share a line wherever the
+ * array starts.
+ */
+public final class EventCounters {
+
+    public static final String FIELD_NAME = "_j4logEventCounters";
+
+    private static final String COUNT_METHOD_NAME = "_j4logCountEvent";
+    private static final String GROW_METHOD_NAME = "_j4logGrowEventCounters";
+
+    private static final LogLevel[] LEVELS = LogLevel.values();
+
+    private static final int STRIPES = 8;
+    // Longs per cache line
+    private static final int PADDING = 8;
+    private static final int ROW = LEVELS.length;
+    private static final int STRIDE = ROW + PADDING;
+    private static final int STRIPED_LENGTH = PADDING + STRIPES * STRIDE;
+
+    private EventCounters() {
+    }
+
+    /**
+     * @return the declaration of the field holding the counters,
+     *         <code>null</code> until the first event.
+     */
+    public static String fieldSrc() {
+
+	return "public volatile " + AtomicLongArray.class.getName() + " " + FIELD_NAME + ";";
+    }
+
+    /**
+     * @return the declarations of the methods counting the events, to be
+     *         added together with the field and in this order.
+     */
+    public static String[] methodsSrc() {
+
+	String array = AtomicLongArray.class.getName();
+	return new String[] {
+		// Replaces the given counters, if still current, and moves what
+		// they counted to their replacement
+		"public final " + array + " " + GROW_METHOD_NAME + "(" + array + " replaced) {"
+		    + array + " counters;"
+		    + "synchronized (this) {"
+			+ "counters = this." + FIELD_NAME + ";"
+			+ "if (counters == replaced) {"
+			    + "counters = new " + array + "(replaced == null ? " + ROW + " : " + STRIPED_LENGTH + ");"
+			    + "this." + FIELD_NAME + " = counters;"
+			+ "}"
+		    + "}"
+		    + "if (replaced != null) {"
+			+ "for (int i = 0; i < " + ROW + "; i++) {"
+			    + "long count = replaced.getAndSet(i, 0L);"
+			    + "if (count != 0L) {"
+				+ "counters.addAndGet(" + PADDING + " + i, count);"
+			    + "}"
+			+ "}"
+		    + "}"
+		    + "return counters;"
+		+ "}",
+		"public final void " + COUNT_METHOD_NAME + "(int level) {"
+		    + array + " counters = this." + FIELD_NAME + ";"
+		    + "if (counters == null) {"
+			+ "counters = " + GROW_METHOD_NAME + "((" + array + ") null);"
+		    + "}"
+		    + "if (counters.length() == " + ROW + ") {"
+			+ "long count = counters.get(level);"
+			+ "if (counters.compareAndSet(level, count, count + 1)) {"
+			    // Counted on a row replaced meanwhile
+			    + "if (this." + FIELD_NAME + " != counters) {"
+				+ GROW_METHOD_NAME + "(counters);"
+			    + "}"
+			    + "return;"
+			+ "}"
+			+ "counters = " + GROW_METHOD_NAME + "(counters);"
+		    + "}"
+		    + "counters.incrementAndGet(" + PADDING + " + ((int) java.lang.Thread.currentThread().getId() & "
+			+ (STRIPES - 1) + ") * " + STRIDE + " + level);"
+		+ "}" };
+    }
+
+    /**
+     * Returns the source of a statement counting an event.
+     *
+     * @param levelOrdinalExpr
+     *            evaluates to the ordinal of the {@link LogLevel} of the
+     *            event.
+     * @return
+     */
+    public static String countSrc(String levelOrdinalExpr) {
+
+	return "this." + COUNT_METHOD_NAME + "(" + levelOrdinalExpr + ");";
+    }
+
+    /**
+     * Adds the counters of all the stripes up.
+     *
+     * @param counters
+     *            the injected array, <code>null</code> if nothing was
+     *            counted yet.
+     * @param counts
+     *            the counts to add to, indexed by {@link LogLevel} ordinal.
+     */
+    public static void addTo(AtomicLongArray counters, long[] counts) {
+
+	if (counters == null) {
+	    return;
+	}
+	if (counters.length() == ROW) {
+	    for (int level = 0; level < ROW; level++) {
+		counts[level] += counters.get(level);
+	    }
+	    return;
+	}
+	for (int stripe = 0; stripe < STRIPES; stripe++) {
+	    for (int level = 0; level < ROW; level++) {
+		counts[level] += counters.get(PADDING + stripe * STRIDE + level);
+	    }
+	}
+    }
+
+    /**
+     * @return an array fitting the counts of every level.
+     */
+    public static long[] newCounts() {
+	return new long[LEVELS.length];
+    }
+
+}
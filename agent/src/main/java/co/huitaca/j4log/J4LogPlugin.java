@@ -0,0 +1,400 @@
+/*
+ * Copyright 2016 Camilo Bermúdez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.huitaca.j4log;
+
+import java.security.ProtectionDomain;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javassist.ClassPool;
+
+public abstract class J4LogPlugin {
+
+    protected LevelMatcher initialLevels = LevelMatcher.EMPTY;
+
+    protected LevelSnapshot snapshot;
+
+    protected final LoggerRegistry registry = LoggerRegistry.getInstance();
+
+    private volatile boolean active;
+
+    public int countLoggers() {
+	return registry.count(this);
+    }
+
+    public Map<String, String> getLoggers() {
+	return registry.getSubtree(this, null);
+    }
+
+    public int countLoggersLike(String like) {
+	return getLoggersLike(like).size();
+    }
+
+    public Map<String, String> getLoggersLike(String like) {
+	return registry.getLoggersLike(this, like);
+    }
+
+    public void setLevel(String logger, String level) {
+	for (Object instance : registry.getInstances(this, logger)) {
+	    setLoggerLevel(instance, level);
+	}
+    }
+
+    public String getLevel(String logger) {
+	return registry.getLevel(this, logger);
+    }
+
+    /**
+     * @param logger
+     * @return whether the logger has instances and none of them has a level
+     *         of its own.
+     */
+    public boolean isLevelInherited(String logger) {
+
+	List<Object> instances = registry.getInstances(this, logger);
+	for (Object instance : instances) {
+	    if (hasOwnLoggerLevel(instance)) {
+		return false;
+	    }
+	}
+	return !instances.isEmpty();
+    }
+
+    /**
+     * Drops the level of the logger instances, so they inherit it again.
+     * 
+     * @param logger
+     */
+    public void inheritLevel(String logger) {
+	for (Object instance : registry.getInstances(this, logger)) {
+	    clearLoggerLevel(instance);
+	}
+    }
+
+    /**
+     * Same as {@link #inheritLevel(String)} for a batch of loggers.
+     * 
+     * @param loggers
+     */
+    public void inheritLevels(Collection<String> loggers) {
+	for (String logger : loggers) {
+	    inheritLevel(logger);
+	}
+    }
+
+    /**
+     * Applies a batch of levels, each one to the subtree rooted at its logger.
+     * 
+     * @param levels
+     *            loggers mapped to the names of the {@link LogLevel}s to set.
+     * @return the loggers whose level changed, mapped to their previous level.
+     */
+    public Map<String, String> setLevels(Map<String, String> levels) {
+	return setLevels(levels, false);
+    }
+
+    /**
+     * Same as {@link #setLevels(Map)}.
+     * 
+     * @param levels
+     * @param force
+     *            whether to set the level on every logger of each subtree,
+     *            rather than on its root only when the library propagates
+     *            it.
+     * @return
+     */
+    public Map<String, String> setLevels(Map<String, String> levels, boolean force) {
+	return setLevels(levels, force, null);
+    }
+
+    /**
+     * Same as {@link #setLevels(Map, boolean)}, also collecting the loggers
+     * touched by the batch that had no level of their own, so they can be
+     * made to inherit again rather than pinned to the level they inherited.
+     * Every other overload ends up here.
+     * 
+     * @param levels
+     * @param force
+     * @param inherited
+     *            where the names of those loggers get added,
+     *            <code>null</code> if not needed.
+     * @return
+     */
+    public Map<String, String> setLevels(Map<String, String> levels, boolean force, Set<String> inherited) {
+	return registry.setLevels(this, levels, force, inherited);
+    }
+
+    public Map<String, String> getLevels(String[] loggers) {
+	return registry.getLevels(this, loggers);
+    }
+
+    public boolean contains(String logger) {
+	return registry.contains(this, logger);
+    }
+
+    /**
+     * *** ONLY USED IN AGENT MODE ***
+     * 
+     * Called by the code injected into the logging library every time a
+     * logger instance gets created. This is the one time the initial state
+     * given to the agent gets applied to the logger, the levels recorded in
+     * the snapshot first.
+     * 
+     * @param logger
+     * @return what {@link #applyInitialLevel(Object, LogLevel, String)}
+     *         returns.
+     */
+    public Object onLoggerCreated(Object logger) {
+
+	String name = getLoggerName(logger);
+	if (name == null) {
+	    return null;
+	}
+	registry.register(this, name, logger);
+	Entry<String, LogLevel> recorded = snapshot == null ? null : snapshot.matchEntry(name);
+	if (recorded != null) {
+	    return applyInitialLevel(logger, recorded.getValue(), recorded.getKey());
+	}
+	LevelRule rule = initialLevels.matchRule(name);
+
+	return rule == null ? null : applyInitialLevel(logger, rule.getLevel(), rule.getSubtreeRoot(name));
+    }
+
+    /**
+     * Applies to a logger just created the level it should start with.
+     * Implementations that can't change levels at that point can hand the
+     * level back to the injected code instead.
+     * 
+     * @param logger
+     * @param level
+     * @param subtreeRoot
+     *            the logger, the one created or an ancestor, whose whole
+     *            subtree starts with that level, <code>null</code> if the
+     *            level was matched for this logger alone.
+     * @return <code>null</code> if the level was applied, otherwise the value
+     *         the injected code expects.
+     */
+    protected Object applyInitialLevel(Object logger, LogLevel level, String subtreeRoot) {
+
+	setLoggerLevel(logger, level.name());
+	return null;
+    }
+
+    /**
+     * *** ONLY USED IN AGENT MODE ***
+     * 
+     * Called by the injected code when a root logger needs the j4log console
+     * appender.
+     * 
+     * @param root
+     * @return an appender, or handler, of the library handled by the plug-in,
+     *         <code>null</code> if there's none.
+     */
+    public Object onAppenderRequested(Object root) {
+	return null;
+    }
+
+    /**
+     * @param logger
+     *            a logger instance of the library handled by the plug-in.
+     * @return the logger name.
+     */
+    protected abstract String getLoggerName(Object logger);
+
+    /**
+     * @param logger
+     *            a logger instance of the library handled by the plug-in.
+     * @return the logger level as the name of a {@link LogLevel}.
+     */
+    protected abstract String getLoggerLevel(Object logger);
+
+    /**
+     * @param logger
+     *            a logger instance of the library handled by the plug-in.
+     * @param level
+     *            the name of a {@link LogLevel}.
+     */
+    protected abstract void setLoggerLevel(Object logger, String level);
+
+    /**
+     * @param logger
+     *            a logger instance of the library handled by the plug-in.
+     * @return the counters of the events emitted by the logger, see
+     *         {@link EventCounters}, <code>null</code> if the library doesn't
+     *         count them.
+     */
+    protected AtomicLongArray getLoggerEventCounters(Object logger) {
+	return null;
+    }
+
+    /**
+     * Whether the library propagates a logger level to the descendants that
+     * don't have one of their own. If so, the level of a subtree is only set
+     * on its root and the descendants get to inherit it through
+     * {@link #inheritLoggerLevel(Object, String)}, rather than one by one.
+     * 
+     * @return
+     */
+    protected boolean inheritsLevels() {
+	return false;
+    }
+
+    /**
+     * Makes a logger inherit its level, dropping the one of its own, as long
+     * as its ancestors give it the expected level. Only called if
+     * {@link #inheritsLevels()}, after the ancestors got their levels.
+     * 
+     * @param logger
+     * @param level
+     *            the level the logger should end up with.
+     * @return whether the logger inherits the level, otherwise it gets set
+     *         on the logger.
+     */
+    protected boolean inheritLoggerLevel(Object logger, String level) {
+	return false;
+    }
+
+    /**
+     * @param logger
+     * @return whether the logger has a level of its own, always the case
+     *         unless {@link #inheritsLevels()}.
+     */
+    protected boolean hasOwnLoggerLevel(Object logger) {
+	return true;
+    }
+
+    /**
+     * Drops the level of the logger, whatever its ancestors give it. Only
+     * called on loggers that didn't have one of their own, see
+     * {@link #hasOwnLoggerLevel(Object)}.
+     * 
+     * @param logger
+     */
+    protected void clearLoggerLevel(Object logger) {
+    }
+
+    /**
+     * *** ONLY USED IN AGENT MODE ***
+     * 
+     * The implementation should return the names of the classes it's interested
+     * in. When any of the classes returned here gets loaded the plug-in
+     * implementation will get notified on the method
+     * {@link #onClassLoaded(String, ClassLoader, Class, ProtectionDomain, ClassPool, byte[])}.
+     * 
+     * @return a list of classes fully qualified names, e.g.
+     *         {"java.lang.List","java.lang.String"}
+     */
+    public abstract String[] getObservedClasses();
+
+    /**
+     * *** ONLY USED IN AGENT MODE ***
+     * 
+     * Through this method, the implementation will get notified about the
+     * loading events of any of the classes returned on
+     * {@link #getObservedClasses()}.
+     * 
+     * @param className
+     * @param classLoader
+     * @param classBeingRedefined
+     *            not <code>null</code> if the class was already loaded when
+     *            the agent got attached, the transformation can't add any
+     *            member to it then.
+     * @param protectionDomain
+     * @param pool
+     *            a pool able to see the classes of the class loader, only
+     *            valid during this call.
+     * @param classfileBuffer
+     *            the classfile to transform. The transformation is reused
+     *            for identical classfiles of other class loaders, which
+     *            don't get this call, see
+     *            {@link #onClassLoading(String, ClassLoader, Class)}.
+     */
+    public abstract byte[] onClassLoaded(String className, ClassLoader classLoader, Class<?> classBeingRedefined,
+	    ProtectionDomain protectionDomain, ClassPool pool, byte[] classfileBuffer);
+
+    /**
+     * *** ONLY USED IN AGENT MODE ***
+     * 
+     * Called every time one of the classes returned on
+     * {@link #getObservedClasses()} gets loaded, before it's transformed and
+     * even if the transformation is reused. Whatever has to happen once per
+     * class loader belongs here rather than in
+     * {@link #onClassLoaded(String, ClassLoader, Class, ProtectionDomain, ClassPool, byte[])}.
+     * 
+     * @param className
+     * @param classLoader
+     * @param classBeingRedefined
+     */
+    public void onClassLoading(String className, ClassLoader classLoader, Class<?> classBeingRedefined) {
+    }
+
+    /**
+     * *** ONLY USED IN AGENT MODE ***
+     * 
+     * Called when the agent gets attached to a running JVM for each of the
+     * classes returned on {@link #getObservedClasses()} that was already
+     * loaded, once retransformed, so that the loggers created until then can
+     * be registered.
+     * 
+     * @param observedClass
+     */
+    public void onClassFound(Class<?> observedClass) {
+    }
+
+    /**
+     * *** ONLY USED IN AGENT MODE ***
+     * 
+     * Sets up whatever the plug-in needs to handle its library. Called once,
+     * the first time one of the classes returned on
+     * {@link #getObservedClasses()} gets loaded, so plug-ins of libraries the
+     * application doesn't use cost nothing but their construction.
+     */
+    protected void activate() {
+    }
+
+    public final void ensureActive() {
+
+	if (active) {
+	    return;
+	}
+	synchronized (this) {
+	    if (!active) {
+		activate();
+		active = true;
+	    }
+	}
+    }
+
+    public boolean isActive() {
+	return active;
+    }
+
+    public void setInitialLevels(LevelMatcher initialLevels) {
+	this.initialLevels = initialLevels;
+    }
+
+    public void setSnapshot(LevelSnapshot snapshot) {
+	this.snapshot = snapshot;
+    }
+    
+    public Map<String, String> getSubtree(String root) {
+	return registry.getSubtree(this, root);
+    }
+}
@@ -0,0 +1,532 @@
+/*
+ * Copyright 2016 Camilo Bermúdez
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.huitaca.j4log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Finds the level a logger should start with, compiled once from the
+ * {@link LevelRule}s given to the agent into a single automaton.
+ *
+ * Every rule becomes a fragment of one nondeterministic automaton, which
+ * gets determinized lazily: each deterministic state is built the first time
+ * a name reaches it and kept, so a match costs a step per character of the
+ * name, no matter how many rules there are. Prefixes and globs match as soon
+ * as the name reaches their end, regular expressions only at the end of the
+ * name. The most specific rule matched wins, the one with the most literal
+ * characters, the last one given among equals.
+ */
+public class LevelMatcher {
+
+    public static final LevelMatcher EMPTY = new LevelMatcher(Collections.<LevelRule> emptyList());
+
+    // Past that many states the automaton stops growing, further states get
+    // built on every match and no transition is cached to or from them
+    private static final int MAX_STATES = 10000;
+    private static final int CACHED_CHARS = 128;
+
+    private final List<LevelRule> rules = new ArrayList<>();
+    private final List<Integer> specificities = new ArrayList<>();
+    private final List<NState> nStates = new ArrayList<>();
+    private final ConcurrentMap<StateSet, DState> dStates = new ConcurrentHashMap<>();
+    private final DState start;
+
+    public LevelMatcher(Map<String, LogLevel> levels) {
+	this(LevelRule.prefixes(levels));
+    }
+
+    public LevelMatcher(List<LevelRule> levelRules) {
+
+	NState root = newState();
+	for (LevelRule rule : levelRules) {
+	    try {
+		Compiler compiler = new Compiler(rule.getPattern());
+		Fragment fragment = rule.getType() == LevelRule.Type.REGEX ? compiler.regex() : compiler.glob();
+		root.epsilons.add(fragment.start);
+		if (rule.getType() == LevelRule.Type.REGEX) {
+		    fragment.end.endRule = rules.size();
+		} else {
+		    fragment.end.prefixRule = rules.size();
+		}
+		rules.add(rule);
+		specificities.add(compiler.literals);
+	    } catch (IllegalArgumentException e) {
+		System.out.println("Ignoring level rule " + rule + ": " + e.getMessage());
+	    }
+	}
+	start = getState(closure(Collections.singletonList(root)));
+    }
+
+    /**
+     * @param name
+     *            a logger name.
+     * @return the level of the most specific rule matching the name,
+     *         <code>null</code> if none matches.
+     */
+    public LogLevel match(String name) {
+
+	LevelRule rule = matchRule(name);
+	return rule == null ? null : rule.getLevel();
+    }
+
+    /**
+     * @param name
+     *            a logger name.
+     * @return the most specific rule matching the name, <code>null</code> if
+     *         none matches.
+     */
+    public LevelRule matchRule(String name) {
+
+	DState state = start;
+	int best = state.prefixRule;
+	for (int i = 0; i < name.length() && state != null; i++) {
+	    state = state.next(name.charAt(i));
+	    if (state != null) {
+		best = moreSpecific(best, state.prefixRule);
+	    }
+	}
+	if (state != null) {
+	    best = moreSpecific(best, state.endRule);
+	}
+
+	return best < 0 ? null : rules.get(best);
+    }
+
+    public boolean isEmpty() {
+	return rules.isEmpty();
+    }
+
+    private int moreSpecific(int a, int b) {
+
+	if (a < 0 || b < 0) {
+	    return Math.max(a, b);
+	}
+	int diff = specificities.get(a) - specificities.get(b);
+	return diff > 0 || (diff == 0 && a > b) ? a : b;
+    }
+
+    private NState newState() {
+
+	NState state = new NState(nStates.size());
+	nStates.add(state);
+	return state;
+    }
+
+    private StateSet closure(List<NState> states) {
+
+	BitSet closure = new BitSet(nStates.size());
+	Deque<NState> pending = new ArrayDeque<>(states);
+	while (!pending.isEmpty()) {
+	    NState state = pending.pop();
+	    if (closure.get(state.id)) {
+		continue;
+	    }
+	    closure.set(state.id);
+	    pending.addAll(state.epsilons);
+	}
+	return new StateSet(closure);
+    }
+
+    private DState getState(StateSet states) {
+
+	DState state = dStates.get(states);
+	if (state != null) {
+	    return state;
+	}
+	if (dStates.size() >= MAX_STATES) {
+	    return new DState(states, false);
+	}
+	state = new DState(states, true);
+	DState previous = dStates.putIfAbsent(states, state);
+	return previous == null ? state : previous;
+    }
+
+    private static class NState {
+
+	private final int id;
+	private final List<NState> epsilons = new ArrayList<>();
+	private final List<CharClass> edgeChars = new ArrayList<>();
+	private final List<NState> edgeTargets = new ArrayList<>();
+	private int prefixRule = -1;
+	private int endRule = -1;
+
+	private NState(int id) {
+	    this.id = id;
+	}
+
+	private void addEdge(CharClass chars, NState target) {
+	    edgeChars.add(chars);
+	    edgeTargets.add(target);
+	}
+    }
+
+    private static class StateSet {
+
+	private final BitSet states;
+	private final int hash;
+
+	private StateSet(BitSet states) {
+	    this.states = states;
+	    this.hash = states.hashCode();
+	}
+
+	@Override
+	public int hashCode() {
+	    return hash;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+	    return obj instanceof StateSet && ((StateSet) obj).states.equals(states);
+	}
+    }
+
+    /*
+     * A deterministic state. Transitions between interned states are filled
+     * in as names need them, racing threads compute the same state and either
+     * one is kept.
+     */
+    private class DState {
+
+	private final StateSet states;
+	private final int prefixRule;
+	private final int endRule;
+	// Null unless interned
+	private final DState[] asciiTransitions;
+	private final ConcurrentMap<Character, DState> transitions;
+
+	private DState(StateSet states, boolean interned) {
+
+	    this.states = states;
+	    this.asciiTransitions = interned ? new DState[CACHED_CHARS] : null;
+	    this.transitions = interned ? new ConcurrentHashMap<Character, DState>() : null;
+	    int prefix = -1;
+	    int end = -1;
+	    for (int i = states.states.nextSetBit(0); i >= 0; i = states.states.nextSetBit(i + 1)) {
+		NState state = nStates.get(i);
+		prefix = moreSpecific(prefix, state.prefixRule);
+		end = moreSpecific(end, state.endRule);
+	    }
+	    this.prefixRule = prefix;
+	    this.endRule = end;
+	}
+
+	/**
+	 * @return <code>null</code> if no rule can match any more.
+	 */
+	private DState next(char c) {
+
+	    DState next = null;
+	    if (transitions != null) {
+		next = c < CACHED_CHARS ? asciiTransitions[c] : transitions.get(c);
+		if (next != null) {
+		    return next.states.states.isEmpty() ? null : next;
+		}
+	    }
+
+	    List<NState> targets = new ArrayList<>();
+	    for (int i = states.states.nextSetBit(0); i >= 0; i = states.states.nextSetBit(i + 1)) {
+		NState state = nStates.get(i);
+		for (int j = 0; j < state.edgeChars.size(); j++) {
+		    if (state.edgeChars.get(j).matches(c)) {
+			targets.add(state.edgeTargets.get(j));
+		    }
+		}
+	    }
+	    next = getState(closure(targets));
+	    // Caching a state built past the cap would keep it alive
+	    if (transitions != null && next.transitions != null) {
+		if (c < CACHED_CHARS) {
+		    asciiTransitions[c] = next;
+		} else {
+		    transitions.putIfAbsent(c, next);
+		}
+	    }
+	    return next.states.states.isEmpty() ? null : next;
+	}
+    }
+
+    private static class Fragment {
+
+	private final NState start;
+	private final NState end;
+
+	private Fragment(NState start, NState end) {
+	    this.start = start;
+	    this.end = end;
+	}
+    }
+
+    /*
+     * Thompson's construction of the fragment of a rule, counting its literal
+     * characters along the way.
+     */
+    private class Compiler {
+
+	private final String pattern;
+	private int position;
+	private int literals;
+
+	private Compiler(String pattern) {
+	    this.pattern = pattern;
+	}
+
+	private Fragment glob() {
+
+	    NState start = newState();
+	    NState end = start;
+	    while (position < pattern.length()) {
+		char c = pattern.charAt(position++);
+		if (c == '*') {
+		    boolean any = position < pattern.length() && pattern.charAt(position) == '*';
+		    position += any ? 1 : 0;
+		    end.addEdge(any ? CharClass.ANY : CharClass.NOT_DOT, end);
+		} else {
+		    NState next = newState();
+		    if (c == '?') {
+			end.addEdge(CharClass.NOT_DOT, next);
+		    } else {
+			end.addEdge(CharClass.of(c), next);
+			literals++;
+		    }
+		    end = next;
+		}
+	    }
+	    return new Fragment(start, end);
+	}
+
+	private Fragment regex() {
+
+	    if (position < pattern.length() && pattern.charAt(position) == '^') {
+		position++;
+	    }
+	    Fragment fragment = alternation();
+	    if (position < pattern.length() && pattern.charAt(position) == '$'
+		    && position == pattern.length() - 1) {
+		position++;
+	    }
+	    if (position < pattern.length()) {
+		throw new IllegalArgumentException("Unexpected " + pattern.charAt(position) + " at " + position);
+	    }
+	    return fragment;
+	}
+
+	private Fragment alternation() {
+
+	    Fragment fragment = concatenation();
+	    while (position < pattern.length() && pattern.charAt(position) == '|') {
+		position++;
+		Fragment other = concatenation();
+		NState start = newState();
+		NState end = newState();
+		start.epsilons.add(fragment.start);
+		start.epsilons.add(other.start);
+		fragment.end.epsilons.add(end);
+		other.end.epsilons.add(end);
+		fragment = new Fragment(start, end);
+	    }
+	    return fragment;
+	}
+
+	private Fragment concatenation() {
+
+	    NState start = newState();
+	    Fragment fragment = new Fragment(start, start);
+	    while (position < pattern.length() && "|)".indexOf(pattern.charAt(position)) < 0
+		    && !(pattern.charAt(position) == '$' && position == pattern.length() - 1)) {
+		Fragment next = repetition();
+		fragment.end.epsilons.add(next.start);
+		fragment = new Fragment(fragment.start, next.end);
+	    }
+	    return fragment;
+	}
+
+	private Fragment repetition() {
+
+	    Fragment fragment = atom();
+	    while (position < pattern.length() && "*+?".indexOf(pattern.charAt(position)) >= 0) {
+		char quantifier = pattern.charAt(position++);
+		NState start = newState();
+		NState end = newState();
+		start.epsilons.add(fragment.start);
+		fragment.end.epsilons.add(end);
+		if (quantifier != '+') {
+		    start.epsilons.add(end);
+		}
+		if (quantifier != '?') {
+		    fragment.end.epsilons.add(fragment.start);
+		}
+		fragment = new Fragment(start, end);
+	    }
+	    if (position < pattern.length() && pattern.charAt(position) == '{') {
+		throw new IllegalArgumentException("Unsupported bounded repetition at " + position);
+	    }
+	    return fragment;
+	}
+
+	private Fragment atom() {
+
+	    char c = pattern.charAt(position++);
+	    CharClass chars;
+	    switch (c) {
+	    case '(':
+		if (pattern.startsWith("?:", position)) {
+		    position += 2;
+		} else if (position < pattern.length() && pattern.charAt(position) == '?') {
+		    throw new IllegalArgumentException("Unsupported group at " + position);
+		}
+		Fragment group = alternation();
+		if (position >= pattern.length() || pattern.charAt(position) != ')') {
+		    throw new IllegalArgumentException("Unclosed group");
+		}
+		position++;
+		return group;
+	    case '[':
+		chars = charClass();
+		break;
+	    case '.':
+		chars = CharClass.ANY;
+		break;
+	    case '\\':
+		chars = escape(false);
+		break;
+	    case '*':
+	    case '+':
+	    case '?':
+	    case '{':
+	    case '^':
+	    case '$':
+		throw new IllegalArgumentException("Unexpected " + c + " at " + (position - 1));
+	    default:
+		chars = CharClass.of(c);
+		literals++;
+	    }
+	    NState start = newState();
+	    NState end = newState();
+	    start.addEdge(chars, end);
+	    return new Fragment(start, end);
+	}
+
+	private CharClass charClass() {
+
+	    boolean negated = position < pattern.length() && pattern.charAt(position) == '^';
+	    position += negated ? 1 : 0;
+	    StringBuilder ranges = new StringBuilder();
+	    boolean first = true;
+	    while (position < pattern.length() && (first || pattern.charAt(position) != ']')) {
+		first = false;
+		char c = pattern.charAt(position++);
+		if (c == '\\') {
+		    CharClass escaped = escape(true);
+		    ranges.append(escaped.ranges);
+		    continue;
+		}
+		char to = c;
+		if (position + 1 < pattern.length() && pattern.charAt(position) == '-'
+			&& pattern.charAt(position + 1) != ']') {
+		    to = pattern.charAt(position + 1);
+		    position += 2;
+		    if (to < c) {
+			throw new IllegalArgumentException("Illegal range " + c + "-" + to);
+		    }
+		}
+		ranges.append(c).append(to);
+	    }
+	    if (position >= pattern.length()) {
+		throw new IllegalArgumentException("Unclosed character class");
+	    }
+	    position++;
+	    return new CharClass(ranges.toString().toCharArray(), negated);
+	}
+
+	private CharClass escape(boolean inClass) {
+
+	    if (position >= pattern.length()) {
+		throw new IllegalArgumentException("Trailing backslash");
+	    }
+	    char c = pattern.charAt(position++);
+	    switch (c) {
+	    case 'd':
+		return CharClass.DIGIT;
+	    case 'w':
+		return CharClass.WORD;
+	    case 's':
+		return CharClass.SPACE;
+	    case 'D':
+	    case 'W':
+	    case 'S':
+		if (inClass) {
+		    throw new IllegalArgumentException("Unsupported \\" + c + " in character class");
+		}
+		CharClass positive = c == 'D' ? CharClass.DIGIT : c == 'W' ? CharClass.WORD : CharClass.SPACE;
+		return new CharClass(positive.ranges, true);
+	    default:
+		if (Character.isLetterOrDigit(c)) {
+		    throw new IllegalArgumentException("Unsupported escape \\" + c);
+		}
+		literals += inClass ? 0 : 1;
+		return CharClass.of(c);
+	    }
+	}
+    }
+
+    private static class CharClass {
+
+	private static final CharClass ANY = new CharClass(new char[0], true);
+	private static final CharClass NOT_DOT = new CharClass(new char[] { '.', '.' }, true);
+	private static final CharClass DIGIT = new CharClass("09".toCharArray(), false);
+	private static final CharClass WORD = new CharClass("azAZ09__".toCharArray(), false);
+	private static final CharClass SPACE = new CharClass(" \t\n\n\u000B\u000B\f\f\r\r".toCharArray(), false);
+
+	// Inclusive bounds, in pairs
+	private final char[] ranges;
+	private final boolean negated;
+
+	private CharClass(char[] ranges, boolean negated) {
+	    this.ranges = ranges;
+	    this.negated = negated;
+	}
+
+	private static CharClass of(char c) {
+	    return new CharClass(new char[] { c, c }, false);
+	}
+
+	private boolean matches(char c) {
+
+	    for (int i = 0; i < ranges.length; i += 2) {
+		if (c >= ranges[i] && c <= ranges[i + 1]) {
+		    return !negated;
+		}
+	    }
+	    return negated;
+	}
+
+	@Override
+	public String toString() {
+	    return (negated ? "^" : "") + Arrays.toString(ranges);
+	}
+    }
+
+}
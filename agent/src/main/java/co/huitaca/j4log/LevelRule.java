@@ -0,0 +1,160 @@
+/*
+ * Copyright 2016 Camilo Bermúdez
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.huitaca.j4log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * A level for the loggers whose names match a pattern, one of:
+ * <ul>
+ * <li>a prefix, <code>com.acme=DEBUG</code>, as the agent arguments.</li>
+ * <li>a glob, <code>com.acme.*.dao=TRACE</code>, also matching as a prefix.
+ * <code>*</code> and <code>?</code> don't match dots, <code>**</code>
+ * does.</li>
+ * <li>a regular expression between slashes matching the whole name,
+ * <code>/com\.acme\..*Test/=OFF</code>. Groups, alternations, classes and
+ * the <code>*</code>, <code>+</code> and <code>?</code> quantifiers are
+ * supported.</li>
+ * </ul>
+ *
+ * Rules files hold a rule per line, blank lines and lines starting with
+ * <code>#</code> are skipped.
+ */
+public class LevelRule {
+
+    public static final String RULES_PROPERTY = "j4log.rules";
+
+    public enum Type {
+	PREFIX, GLOB, REGEX
+    }
+
+    private final Type type;
+    private final String pattern;
+    private final LogLevel level;
+
+    public LevelRule(Type type, String pattern, LogLevel level) {
+	this.type = type;
+	this.pattern = pattern;
+	this.level = level;
+    }
+
+    /**
+     * @param line
+     *            <code>pattern=LEVEL</code>, the level after the last
+     *            <code>=</code>.
+     * @return <code>null</code> for blank lines and comments.
+     * @throws IllegalArgumentException
+     *             if the line isn't a rule.
+     */
+    public static LevelRule parse(String line) {
+
+	String rule = line.trim();
+	if (rule.isEmpty() || rule.startsWith("#")) {
+	    return null;
+	}
+	int separator = rule.lastIndexOf('=');
+	if (separator < 1) {
+	    throw new IllegalArgumentException("Missing level: " + line);
+	}
+	String pattern = rule.substring(0, separator).trim();
+	LogLevel level = LogLevel.valueOf(rule.substring(separator + 1).trim().toUpperCase());
+	if (pattern.length() > 1 && pattern.startsWith("/") && pattern.endsWith("/")) {
+	    return new LevelRule(Type.REGEX, pattern.substring(1, pattern.length() - 1), level);
+	}
+	if (pattern.indexOf('*') >= 0 || pattern.indexOf('?') >= 0) {
+	    return new LevelRule(Type.GLOB, pattern, level);
+	}
+	return new LevelRule(Type.PREFIX, pattern, level);
+    }
+
+    /**
+     * Loads a rules file, the lines that aren't rules are reported and
+     * skipped.
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static List<LevelRule> load(File file) throws IOException {
+
+	List<LevelRule> rules = new ArrayList<>();
+	try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+	    String line;
+	    while ((line = reader.readLine()) != null) {
+		try {
+		    LevelRule rule = parse(line);
+		    if (rule != null) {
+			rules.add(rule);
+		    }
+		} catch (IllegalArgumentException e) {
+		    System.out.println("Ignoring level rule " + line + ": " + e.getMessage());
+		}
+	    }
+	}
+	return rules;
+    }
+
+    public static List<LevelRule> prefixes(Map<String, LogLevel> levels) {
+
+	List<LevelRule> rules = new ArrayList<>();
+	for (Entry<String, LogLevel> entry : levels.entrySet()) {
+	    rules.add(new LevelRule(Type.PREFIX, entry.getKey(), entry.getValue()));
+	}
+	return rules;
+    }
+
+    /**
+     * @param name
+     *            a logger name matched by the rule.
+     * @return the logger whose whole subtree the rule gives its level to, the
+     *         prefix of a prefix rule ending right before a dot of the name
+     *         or with it, <code>null</code> if the rule matches loggers one by
+     *         one.
+     */
+    public String getSubtreeRoot(String name) {
+
+	if (type != Type.PREFIX || !name.startsWith(pattern)) {
+	    return null;
+	}
+	return name.length() == pattern.length() || name.charAt(pattern.length()) == '.' ? pattern : null;
+    }
+
+    public Type getType() {
+	return type;
+    }
+
+    public String getPattern() {
+	return pattern;
+    }
+
+    public LogLevel getLevel() {
+	return level;
+    }
+
+    @Override
+    public String toString() {
+	return (type == Type.REGEX ? "/" + pattern + "/" : pattern) + "=" + level;
+    }
+
+}
@@ -0,0 +1,388 @@
+/*
+ * Copyright 2016 Camilo Bermúdez
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.huitaca.j4log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+/**
+ * The levels set at runtime, kept in a file so they survive restarts.
+ *
+ * The file is memory mapped, nothing gets read when it's opened. Each logger
+ * created looks its name up, then the names of its ancestors, with a binary
+ * search over the sorted entries, so startup doesn't depend on how many
+ * levels the file holds. A level set again on the same logger is written in
+ * place, a single byte, any other change rewrites the file.
+ *
+ * Layout, big-endian:
+ *
+ * <pre>
+ * int magic, int version, int count
+ * int[count] entry offsets, sorted by the UTF-8 bytes of the names
+ * entries: byte level ordinal, short name length, name UTF-8 bytes
+ * </pre>
+ */
+public class LevelSnapshot {
+
+    public static final String PATH_PROPERTY = "j4log.snapshot";
+
+    private static final int MAGIC = 0x4A344C53;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 12;
+    private static final byte SEPARATOR = '.';
+
+    private static final Comparator<byte[]> UTF8_ORDER = new Comparator<byte[]>() {
+
+	@Override
+	public int compare(byte[] a, byte[] b) {
+
+	    for (int i = 0; i < a.length && i < b.length; i++) {
+		int diff = (a[i] & 0xFF) - (b[i] & 0xFF);
+		if (diff != 0) {
+		    return diff;
+		}
+	    }
+	    return a.length - b.length;
+	}
+    };
+
+    private static LevelSnapshot INSTANCE;
+
+    private final File file;
+    private volatile MappedByteBuffer buffer;
+
+    private LevelSnapshot(File file) {
+
+	this.file = file;
+	if (file == null || !file.isFile()) {
+	    return;
+	}
+	try {
+	    MappedByteBuffer mapped = map(file);
+	    if (mapped.capacity() >= HEADER_SIZE && mapped.getInt(0) == MAGIC && mapped.getInt(4) == VERSION) {
+		buffer = mapped;
+	    } else {
+		System.out.println("Ignoring level snapshot with unknown format: " + file);
+	    }
+	} catch (IOException e) {
+	    System.out.println("Error mapping level snapshot: " + file);
+	    e.printStackTrace();
+	}
+    }
+
+    /**
+     * @return the snapshot at the path given by {@value #PATH_PROPERTY}, one
+     *         that keeps nothing if there's no such property.
+     */
+    public static synchronized LevelSnapshot getInstance() {
+
+	if (INSTANCE == null) {
+	    String path = System.getProperty(PATH_PROPERTY);
+	    INSTANCE = new LevelSnapshot(path == null || path.trim().isEmpty() ? null : new File(path.trim()));
+	}
+	return INSTANCE;
+    }
+
+    public boolean isEnabled() {
+	return file != null;
+    }
+
+    /**
+     * @param name
+     *            a logger name.
+     * @return the level recorded for the logger or, if none, for its closest
+     *         ancestor, <code>null</code> if none has one.
+     */
+    public LogLevel match(String name) {
+
+	Entry<String, LogLevel> entry = matchEntry(name);
+	return entry == null ? null : entry.getValue();
+    }
+
+    /**
+     * Same as {@link #match(String)}.
+     *
+     * @param name
+     * @return the logger the level was recorded for, the given one or an
+     *         ancestor, mapped to the level, <code>null</code> if none has
+     *         one.
+     */
+    public Entry<String, LogLevel> matchEntry(String name) {
+
+	ByteBuffer snapshot = buffer;
+	if (snapshot == null) {
+	    return null;
+	}
+	byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+	for (int length = bytes.length; length > 0; length--) {
+	    if (length < bytes.length && bytes[length] != SEPARATOR) {
+		continue;
+	    }
+	    int offset = find(snapshot, bytes, length);
+	    if (offset >= 0) {
+		LogLevel level = toLevel(snapshot.get(offset));
+		return level == null ? null : new SimpleImmutableEntry<>(
+			new String(bytes, 0, length, StandardCharsets.UTF_8), level);
+	    }
+	}
+	return null;
+    }
+
+    /**
+     * Records levels set on subtrees, dropping the levels recorded for their
+     * descendants.
+     *
+     * @param levels
+     *            subtree roots mapped to the names of their levels, sampled
+     *            levels are recorded without their rate.
+     */
+    public synchronized void record(Map<String, String> levels) {
+
+	if (file == null) {
+	    return;
+	}
+	try {
+	    Map<String, LogLevel> changes = new HashMap<>();
+	    for (Entry<String, String> levelEntry : levels.entrySet()) {
+		LogLevel level = parse(levelEntry.getValue());
+		if (level != null) {
+		    changes.put(levelEntry.getKey(), level);
+		}
+	    }
+	    if (changes.isEmpty() || writeInPlace(changes)) {
+		return;
+	    }
+
+	    TreeMap<String, LogLevel> entries = readEntries();
+	    for (Entry<String, LogLevel> change : changes.entrySet()) {
+		Iterator<String> descendants = entries.tailMap(change.getKey() + ".").keySet().iterator();
+		while (descendants.hasNext() && descendants.next().startsWith(change.getKey() + ".")) {
+		    descendants.remove();
+		}
+		entries.put(change.getKey(), change.getValue());
+	    }
+	    rewrite(entries);
+	} catch (IOException e) {
+	    System.out.println("Error writing level snapshot: " + file);
+	    e.printStackTrace();
+	}
+    }
+
+    /*
+     * Only if every logger is already recorded and has no descendant recorded.
+     */
+    private boolean writeInPlace(Map<String, LogLevel> changes) {
+
+	MappedByteBuffer snapshot = buffer;
+	if (snapshot == null) {
+	    return false;
+	}
+	Map<Integer, LogLevel> writes = new HashMap<>();
+	for (Entry<String, LogLevel> change : changes.entrySet()) {
+	    byte[] bytes = change.getKey().getBytes(StandardCharsets.UTF_8);
+	    int offset = find(snapshot, bytes, bytes.length);
+	    if (offset < 0 || hasDescendant(snapshot, bytes)) {
+		return false;
+	    }
+	    writes.put(offset, change.getValue());
+	}
+	for (Entry<Integer, LogLevel> write : writes.entrySet()) {
+	    snapshot.put(write.getKey(), (byte) write.getValue().ordinal());
+	}
+	snapshot.force();
+	return true;
+    }
+
+    /*
+     * Descendants follow the first name starting with the name and a dot,
+     * not necessarily the name itself, e.g. "a-b" sorts between "a" and
+     * "a.b".
+     */
+    private static boolean hasDescendant(ByteBuffer snapshot, byte[] name) {
+
+	byte[] prefix = new byte[name.length + 1];
+	System.arraycopy(name, 0, prefix, 0, name.length);
+	prefix[name.length] = SEPARATOR;
+	int index = lowerBound(snapshot, prefix, prefix.length);
+	if (index >= snapshot.getInt(8)) {
+	    return false;
+	}
+	int offset = snapshot.getInt(HEADER_SIZE + index * 4);
+	int length = snapshot.getShort(offset + 1) & 0xFFFF;
+	if (length < prefix.length) {
+	    return false;
+	}
+	for (int i = 0; i < prefix.length; i++) {
+	    if (snapshot.get(offset + 3 + i) != prefix[i]) {
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    private TreeMap<String, LogLevel> readEntries() {
+
+	TreeMap<String, LogLevel> entries = new TreeMap<>();
+	ByteBuffer snapshot = buffer;
+	if (snapshot == null) {
+	    return entries;
+	}
+	int count = snapshot.getInt(8);
+	for (int i = 0; i < count; i++) {
+	    int offset = snapshot.getInt(HEADER_SIZE + i * 4);
+	    byte[] name = new byte[snapshot.getShort(offset + 1) & 0xFFFF];
+	    for (int j = 0; j < name.length; j++) {
+		name[j] = snapshot.get(offset + 3 + j);
+	    }
+	    LogLevel level = toLevel(snapshot.get(offset));
+	    if (level != null) {
+		entries.put(new String(name, StandardCharsets.UTF_8), level);
+	    }
+	}
+	return entries;
+    }
+
+    /*
+     * Written aside and moved over the previous file, which stays mapped by
+     * whoever still reads it.
+     */
+    private void rewrite(Map<String, LogLevel> entries) throws IOException {
+
+	List<byte[]> names = new ArrayList<>();
+	Map<byte[], LogLevel> levels = new HashMap<>();
+	int size = HEADER_SIZE;
+	for (Entry<String, LogLevel> entry : entries.entrySet()) {
+	    byte[] name = entry.getKey().getBytes(StandardCharsets.UTF_8);
+	    if (name.length > 0xFFFF) {
+		continue;
+	    }
+	    names.add(name);
+	    levels.put(name, entry.getValue());
+	    size += 4 + 3 + name.length;
+	}
+	Collections.sort(names, UTF8_ORDER);
+
+	ByteBuffer content = ByteBuffer.allocate(size);
+	content.putInt(MAGIC).putInt(VERSION).putInt(names.size());
+	int offset = HEADER_SIZE + names.size() * 4;
+	for (byte[] name : names) {
+	    content.putInt(offset);
+	    offset += 3 + name.length;
+	}
+	for (byte[] name : names) {
+	    content.put((byte) levels.get(name).ordinal()).putShort((short) name.length).put(name);
+	}
+
+	File parent = file.getAbsoluteFile().getParentFile();
+	if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+	    throw new IOException("Unable to create " + parent);
+	}
+	File temp = new File(parent, file.getName() + ".tmp");
+	try (RandomAccessFile out = new RandomAccessFile(temp, "rw")) {
+	    out.setLength(0);
+	    out.write(content.array());
+	    out.getFD().sync();
+	}
+	Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+		StandardCopyOption.ATOMIC_MOVE);
+	buffer = map(file);
+    }
+
+    private static MappedByteBuffer map(File file) throws IOException {
+
+	try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+	    return channel.map(MapMode.READ_WRITE, 0, channel.size());
+	}
+    }
+
+    /**
+     * @return the offset of the entry of the name, negative if it's not
+     *         recorded.
+     */
+    private static int find(ByteBuffer snapshot, byte[] name, int length) {
+
+	int index = lowerBound(snapshot, name, length);
+	if (index >= snapshot.getInt(8)) {
+	    return -1;
+	}
+	int offset = snapshot.getInt(HEADER_SIZE + index * 4);
+	return compare(snapshot, offset, name, length) == 0 ? offset : -1;
+    }
+
+    /**
+     * @return the index of the first entry not sorting before the name.
+     */
+    private static int lowerBound(ByteBuffer snapshot, byte[] name, int length) {
+
+	int low = 0;
+	int high = snapshot.getInt(8);
+	while (low < high) {
+	    int mid = (low + high) >>> 1;
+	    if (compare(snapshot, snapshot.getInt(HEADER_SIZE + mid * 4), name, length) < 0) {
+		low = mid + 1;
+	    } else {
+		high = mid;
+	    }
+	}
+	return low;
+    }
+
+    private static int compare(ByteBuffer snapshot, int offset, byte[] name, int length) {
+
+	int entryLength = snapshot.getShort(offset + 1) & 0xFFFF;
+	for (int i = 0; i < entryLength && i < length; i++) {
+	    int diff = (snapshot.get(offset + 3 + i) & 0xFF) - (name[i] & 0xFF);
+	    if (diff != 0) {
+		return diff;
+	    }
+	}
+	return entryLength - length;
+    }
+
+    private static LogLevel toLevel(byte ordinal) {
+
+	LogLevel[] levels = LogLevel.values();
+	return ordinal >= 0 && ordinal < levels.length ? levels[ordinal] : null;
+    }
+
+    private static LogLevel parse(String level) {
+
+	try {
+	    LogLevel logLevel = level == null ? null : Sampling.parse(level).getLevel();
+	    return logLevel == LogLevel.INDETERMINATE ? null : logLevel;
+	} catch (IllegalArgumentException e) {
+	    return null;
+	}
+    }
+}
@@ -0,0 +1,964 @@
+/*
+ * Copyright 2016 Camilo Bermúdez
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.huitaca.j4log;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Central registry of every logger known to j4log, fed by the plug-ins as
+ * loggers get created.
+ *
+ * Loggers are kept in a prefix trie keyed by the dot separated segments of
+ * their names, so a subtree is reached by walking as many nodes as segments
+ * the root name has and then visiting only the loggers below it. Each node
+ * holds one weak {@link Binding} per logger instance registered under that
+ * name, e.g. one per web application bundling its own log4j, so levels are
+ * always read from the live instances and loggers vanish from the registry
+ * together with their class loaders.
+ */
+public class LoggerRegistry {
+
+    private static final Binding[] NO_BINDINGS = new Binding[0];
+
+    private static final LoggerRegistry INSTANCE = new LoggerRegistry();
+
+    /**
+     * System property, or agent argument, with the number of threads used to
+     * answer the aggregate queries. Defaults to the number of processors.
+     */
+    public static final String PARALLELISM_PROPERTY = "j4log.parallelism";
+
+    /*
+     * Registries smaller than this are cheaper to walk in the calling thread
+     */
+    private static final int PARALLEL_THRESHOLD = 10000;
+    private static final int SURPLUS_TASKS = 3;
+
+    // Snapshots kept for the clients paging through them, the least recently
+    // read ones go first
+    private static final int MAX_SNAPSHOTS = 16;
+
+    private final Node root = new Node("");
+    private final ReferenceQueue<Object> collected = new ReferenceQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final ConcurrentMap<J4LogPlugin, AtomicInteger> pluginSizes = new ConcurrentHashMap<>();
+    private final AtomicLong version = new AtomicLong();
+    private volatile Snapshot snapshot;
+    private final Map<Long, Snapshot> snapshots = new LinkedHashMap<Long, Snapshot>(MAX_SNAPSHOTS, 0.75f, true) {
+
+	private static final long serialVersionUID = 1L;
+
+	@Override
+	protected boolean removeEldestEntry(Entry<Long, Snapshot> eldest) {
+	    return size() > MAX_SNAPSHOTS;
+	}
+    };
+
+    public static LoggerRegistry getInstance() {
+	return INSTANCE;
+    }
+
+    /**
+     * Registers a logger instance under the given name on behalf of a plug-in.
+     * Registering the same instance more than once has no effect.
+     *
+     * @param plugin
+     * @param name
+     * @param logger
+     */
+    public void register(J4LogPlugin plugin, String name, Object logger) {
+
+	if (name == null || logger == null) {
+	    return;
+	}
+	expungeCollected();
+
+	Node node = getOrCreateNode(name);
+	synchronized (node) {
+	    boolean pluginPresent = false;
+	    for (Binding binding : node.bindings) {
+		if (binding.get() == logger) {
+		    return;
+		}
+		pluginPresent |= binding.plugin == plugin;
+	    }
+
+	    Binding[] bindings = Arrays.copyOf(node.bindings, node.bindings.length + 1);
+	    bindings[bindings.length - 1] = new Binding(plugin, node, logger, collected);
+	    if (node.bindings.length == 0) {
+		size.incrementAndGet();
+		version.incrementAndGet();
+	    }
+	    if (!pluginPresent) {
+		pluginSize(plugin).incrementAndGet();
+	    }
+	    node.bindings = bindings;
+	}
+    }
+
+    /**
+     * @param plugin
+     *            the plug-in whose loggers should be counted, <code>null</code>
+     *            for all of them.
+     * @return the number of distinct logger names.
+     */
+    public int count(J4LogPlugin plugin) {
+
+	expungeCollected();
+	return plugin == null ? size.get() : pluginSize(plugin).get();
+    }
+
+    public boolean contains(J4LogPlugin plugin, String name) {
+
+	Node node = findNode(name);
+	return node != null && node.hasBindings(plugin);
+    }
+
+    /**
+     * Returns the live logger instances registered under a name.
+     *
+     * @param plugin
+     *            the plug-in that registered the instances, <code>null</code>
+     *            for all of them.
+     * @param name
+     * @return
+     */
+    public List<Object> getInstances(J4LogPlugin plugin, String name) {
+
+	List<Object> instances = new ArrayList<>();
+	Node node = findNode(name);
+	if (node != null) {
+	    for (Binding binding : node.bindings) {
+		Object logger = binding.get();
+		if (logger != null && (plugin == null || binding.plugin == plugin)) {
+		    instances.add(logger);
+		}
+	    }
+	}
+
+	return instances;
+    }
+
+    /**
+     * @param plugin
+     *            the plug-in whose loggers should be taken into account,
+     *            <code>null</code> for all of them.
+     * @param name
+     * @return the level of the named logger, {@link LogLevel#INDETERMINATE}
+     *         if its instances disagree or <code>null</code> if there's no
+     *         such logger.
+     */
+    public String getLevel(J4LogPlugin plugin, String name) {
+
+	Node node = findNode(name);
+	return node == null ? null : node.level(plugin);
+    }
+
+    /**
+     * Same as {@link #getLevel(J4LogPlugin, String)} for a batch of loggers.
+     * Names are looked up in order, each one resuming the walk from the
+     * ancestors it shares with the previous one, so the trie is traversed
+     * once for the whole batch.
+     *
+     * @param plugin
+     *            the plug-in whose loggers should be taken into account,
+     *            <code>null</code> for all of them.
+     * @param names
+     * @return the loggers found mapped to their levels.
+     */
+    public Map<String, String> getLevels(J4LogPlugin plugin, String[] names) {
+
+	Map<String, String> levels = new TreeMap<>();
+	if (names == null) {
+	    return levels;
+	}
+	TreeSet<String> sorted = new TreeSet<>();
+	for (String name : names) {
+	    if (name != null) {
+		sorted.add(name);
+	    }
+	}
+
+	// The nodes walked for the previous name, with the end of their
+	// segment in it
+	List<Node> path = new ArrayList<>();
+	List<Integer> ends = new ArrayList<>();
+	String previous = "";
+	for (String name : sorted) {
+	    int depth = 0;
+	    while (depth < path.size() && sharesSegment(previous, name, ends.get(depth))) {
+		depth++;
+	    }
+	    path.subList(depth, path.size()).clear();
+	    ends.subList(depth, ends.size()).clear();
+
+	    Node node = depth == 0 ? root : path.get(depth - 1);
+	    int start = depth == 0 ? 0 : ends.get(depth - 1) + 1;
+	    while (node != null && start < name.length()) {
+		int end = name.indexOf('.', start);
+		end = end < 0 ? name.length() : end;
+		node = node.children.get(name.substring(start, end));
+		if (node != null) {
+		    path.add(node);
+		    ends.add(end);
+		}
+		start = end + 1;
+	    }
+	    previous = name;
+
+	    String level = node == null ? null : node.level(plugin);
+	    if (level != null) {
+		levels.put(name, level);
+	    }
+	}
+
+	return levels;
+    }
+
+    // Whether both names start with the same segments, up to the given end
+    private static boolean sharesSegment(String previous, String name, int end) {
+
+	return end <= name.length() && name.regionMatches(0, previous, 0, end)
+		&& (end == name.length() || name.charAt(end) == '.');
+    }
+
+    /**
+     * Returns the loggers under the given root, the root itself included.
+     * Subtrees follow the loggers hierarchy, i.e. <code>com.acme</code>
+     * contains <code>com.acme.dao</code> but not <code>com.acmecorp</code>.
+     *
+     * @param plugin
+     *            the plug-in whose loggers should be returned,
+     *            <code>null</code> for all of them.
+     * @param root
+     *            the subtree root, <code>null</code> or empty for the whole
+     *            registry.
+     * @return
+     */
+    public Map<String, String> getSubtree(J4LogPlugin plugin, String root) {
+
+	expungeCollected();
+	Map<String, String> loggers = new TreeMap<>();
+	Node node = root == null || "".equals(root.trim()) ? this.root : findNode(root);
+	if (node != null) {
+	    collect(node, plugin, null, loggers);
+	}
+
+	return loggers;
+    }
+
+    /**
+     * Returns the loggers whose names contain, ignoring case, the given
+     * string.
+     *
+     * @param plugin
+     *            the plug-in whose loggers should be returned,
+     *            <code>null</code> for all of them.
+     * @param like
+     * @return
+     */
+    public Map<String, String> getLoggersLike(J4LogPlugin plugin, String like) {
+
+	expungeCollected();
+	Map<String, String> loggers = new TreeMap<>();
+	collect(root, plugin, like == null || "".equals(like.trim()) ? null : like.toLowerCase(), loggers);
+
+	return loggers;
+    }
+
+    /**
+     * Takes a sorted snapshot of the logger names, or reuses the latest one if
+     * no logger came or went since. Pages read from the same snapshot stay
+     * consistent while loggers keep being created, whatever other clients
+     * do. Levels are always the current ones.
+     *
+     * @return the version of the snapshot, to be given back with each page.
+     */
+    public long openSnapshot() {
+
+	Snapshot current = getSnapshot(true);
+	synchronized (this) {
+	    if (snapshots.get(current.version) == null) {
+		snapshots.put(current.version, current);
+	    }
+	}
+	return current.version;
+    }
+
+    /**
+     * Returns a page of loggers, all plug-ins together, by position.
+     *
+     * Pages are read from the latest snapshot of the logger names, only
+     * renewed when a client starts over from offset 0. A client starting over
+     * shifts the pages of the others, concurrent clients should page through
+     * their own snapshot with {@link #getPage(long, int, int)}.
+     *
+     * @param offset
+     * @param size
+     * @return
+     */
+    public Map<String, String> getPage(int offset, int size) {
+	return getPage(getSnapshot(offset <= 0), null, offset, size);
+    }
+
+    /**
+     * Same as {@link #getPage(int, int)}, only counting the loggers whose
+     * names contain, ignoring case, the given string. Names get filtered
+     * while the snapshot is read, up to the end of the page.
+     *
+     * @param like
+     * @param offset
+     *            position among the matching loggers.
+     * @param size
+     * @return
+     */
+    public Map<String, String> getPageLike(String like, int offset, int size) {
+	return getPage(getSnapshot(offset <= 0), like, offset, size);
+    }
+
+    /**
+     * Returns a page of loggers of the given snapshot, by position.
+     *
+     * @param snapshotVersion
+     *            as returned by {@link #openSnapshot()}.
+     * @param offset
+     * @param size
+     * @return
+     * @throws IllegalArgumentException
+     *             if the snapshot expired, the client should start over.
+     */
+    public Map<String, String> getPage(long snapshotVersion, int offset, int size) {
+	return getPage(getSnapshot(snapshotVersion), null, offset, size);
+    }
+
+    private Map<String, String> getPage(Snapshot snapshot, String like, int offset, int size) {
+
+	Map<String, String> loggers = new TreeMap<>();
+	String lowerLike = like == null || "".equals(like.trim()) ? null : like.toLowerCase();
+	if (lowerLike == null) {
+	    for (int i = Math.max(offset, 0); i < snapshot.names.length && loggers.size() < size; i++) {
+		putLevel(snapshot, i, loggers);
+	    }
+	    return loggers;
+	}
+
+	int skipped = 0;
+	for (int i = 0; i < snapshot.names.length && loggers.size() < size; i++) {
+	    if (!snapshot.names[i].toLowerCase().contains(lowerLike)) {
+		continue;
+	    }
+	    if (skipped < offset) {
+		skipped++;
+	    } else {
+		putLevel(snapshot, i, loggers);
+	    }
+	}
+
+	return loggers;
+    }
+
+    /**
+     * Returns a page of loggers, all plug-ins together, starting right after a
+     * given logger name, i.e. the last one of the previous page.
+     *
+     * Like {@link #getPage(int, int)} the names come from the latest snapshot,
+     * renewed only when a client starts over with no cursor.
+     *
+     * @param after
+     *            the last logger name seen, <code>null</code> to start from the
+     *            beginning.
+     * @param like
+     *            only loggers whose names contain, ignoring case, this string
+     *            are returned, <code>null</code> for all of them.
+     * @param size
+     * @return
+     */
+    public Map<String, String> getPageAfter(String after, String like, int size) {
+	return getPageAfter(getSnapshot(after == null), after, like, size);
+    }
+
+    /**
+     * Same as {@link #getPageAfter(String, String, int)} over the given
+     * snapshot.
+     *
+     * @param snapshotVersion
+     *            as returned by {@link #openSnapshot()}.
+     * @param after
+     * @param like
+     * @param size
+     * @return
+     * @throws IllegalArgumentException
+     *             if the snapshot expired, the client should start over.
+     */
+    public Map<String, String> getPageAfter(long snapshotVersion, String after, String like, int size) {
+	return getPageAfter(getSnapshot(snapshotVersion), after, like, size);
+    }
+
+    private Map<String, String> getPageAfter(Snapshot snapshot, String after, String like, int size) {
+
+	String lowerLike = like == null || "".equals(like.trim()) ? null : like.toLowerCase();
+	Map<String, String> loggers = new TreeMap<>();
+	int i = 0;
+	if (after != null) {
+	    i = Arrays.binarySearch(snapshot.names, after);
+	    i = i < 0 ? -i - 1 : i + 1;
+	}
+	for (; i < snapshot.names.length && loggers.size() < size; i++) {
+	    if (lowerLike == null || snapshot.names[i].toLowerCase().contains(lowerLike)) {
+		putLevel(snapshot, i, loggers);
+	    }
+	}
+
+	return loggers;
+    }
+
+    private void putLevel(Snapshot snapshot, int i, Map<String, String> loggers) {
+
+	String level = snapshot.nodes[i].level(null);
+	if (level != null) {
+	    loggers.put(snapshot.names[i], level);
+	}
+    }
+
+    private Snapshot getSnapshot(boolean renew) {
+
+	expungeCollected();
+	Snapshot current = snapshot;
+	if (current != null && (!renew || current.version == version.get())) {
+	    return current;
+	}
+
+	synchronized (this) {
+	    current = snapshot;
+	    long currentVersion = version.get();
+	    if (current == null || current.version != currentVersion) {
+		List<Node> nodes = new ArrayList<>(size.get());
+		collectNodes(root, nodes);
+		current = new Snapshot(currentVersion, nodes);
+		snapshot = current;
+	    }
+	    return current;
+	}
+    }
+
+    private synchronized Snapshot getSnapshot(long version) {
+
+	expungeCollected();
+	Snapshot found = snapshots.get(version);
+	if (found == null) {
+	    throw new IllegalArgumentException("Logger snapshot " + version + " expired, start over");
+	}
+	return found;
+    }
+
+    /**
+     * Returns the events emitted so far by each logger, the counts of all its
+     * instances added up.
+     *
+     * @return the loggers whose library counts events, mapped to their counts
+     *         indexed by {@link LogLevel} ordinal.
+     */
+    public Map<String, long[]> getEventCounts() {
+
+	expungeCollected();
+	Map<String, long[]> counts = new TreeMap<>();
+	collectEventCounts(root, counts);
+
+	return counts;
+    }
+
+    private static void collectEventCounts(Node node, Map<String, long[]> counts) {
+
+	long[] nodeCounts = null;
+	for (Binding binding : node.bindings) {
+	    Object logger = binding.get();
+	    AtomicLongArray counters = logger == null ? null : binding.plugin.getLoggerEventCounters(logger);
+	    if (counters != null) {
+		nodeCounts = nodeCounts == null ? EventCounters.newCounts() : nodeCounts;
+		EventCounters.addTo(counters, nodeCounts);
+	    }
+	}
+	if (nodeCounts != null) {
+	    counts.put(node.name, nodeCounts);
+	}
+	for (Node child : node.children.values()) {
+	    collectEventCounts(child, counts);
+	}
+    }
+
+    private void collectNodes(Node node, List<Node> nodes) {
+
+	if (node.bindings.length > 0) {
+	    nodes.add(node);
+	}
+	for (Node child : node.children.values()) {
+	    collectNodes(child, nodes);
+	}
+    }
+
+    /**
+     * Sets a batch of levels in a single traversal of the trie, each level
+     * applying to the subtree rooted at its logger. More specific roots
+     * prevail over the less specific ones, no matter the order of the batch.
+     *
+     * For libraries propagating levels themselves (see
+     * {@link J4LogPlugin#inheritsLevels()}) the previous levels are read
+     * first, then only the subtree roots get the level and their descendants
+     * are made to inherit it, unless their closest ancestor instance gives
+     * them another level.
+     *
+     * @param plugin
+     *            the plug-in whose loggers should be changed.
+     * @param levels
+     *            subtree roots mapped to the level to set on them.
+     * @return the loggers whose level changed, mapped to the level they had
+     *         before, {@link LogLevel#INDETERMINATE} if their instances
+     *         disagreed. Levels are read again once set, loggers the library
+     *         refused to change aren't returned.
+     */
+    public Map<String, String> setLevels(J4LogPlugin plugin, Map<String, String> levels) {
+	return setLevels(plugin, levels, false);
+    }
+
+    /**
+     * Same as {@link #setLevels(J4LogPlugin, Map)}, optionally setting the
+     * level on every logger of each subtree even if the library would
+     * propagate it.
+     *
+     * @param plugin
+     * @param levels
+     * @param force
+     * @return
+     */
+    public Map<String, String> setLevels(J4LogPlugin plugin, Map<String, String> levels, boolean force) {
+	return setLevels(plugin, levels, force, null);
+    }
+
+    /**
+     * Same as {@link #setLevels(J4LogPlugin, Map, boolean)}, also collecting
+     * the loggers the batch changed, or pinned to the level they inherited,
+     * none of whose instances had a level of its own.
+     *
+     * @param plugin
+     * @param levels
+     * @param force
+     * @param inherited
+     *            where the names of those loggers get added,
+     *            <code>null</code> if not needed.
+     * @return
+     */
+    public Map<String, String> setLevels(J4LogPlugin plugin, Map<String, String> levels, boolean force,
+	    Set<String> inherited) {
+
+	expungeCollected();
+	Map<String, String> changed = new TreeMap<>();
+	if (levels != null && !levels.isEmpty()) {
+	    boolean inheriting = plugin.inheritsLevels();
+	    NavigableMap<String, String> sorted = new TreeMap<>(levels);
+	    List<Change> changes = new ArrayList<>();
+	    Set<String> inheritedNames = new HashSet<>();
+	    apply(root, plugin, inheriting, null, sorted, changes);
+	    if (inheriting) {
+		inherit(root, plugin, force, null, sorted);
+	    }
+	    Set<String> owned = new HashSet<>();
+	    for (Change change : changes) {
+		String current = plugin.getLoggerLevel(change.logger);
+		if (change.previous.equals(current == null ? LogLevel.INDETERMINATE.name() : current)) {
+		    if (change.inherited && plugin.hasOwnLoggerLevel(change.logger) && !owned.contains(change.name)) {
+			inheritedNames.add(change.name);
+		    }
+		    continue;
+		}
+		String recorded = changed.get(change.name);
+		changed.put(change.name, recorded == null || recorded.equals(change.previous) ? change.previous
+			: LogLevel.INDETERMINATE.name());
+		if (change.inherited && !owned.contains(change.name)) {
+		    inheritedNames.add(change.name);
+		} else if (!change.inherited) {
+		    owned.add(change.name);
+		    inheritedNames.remove(change.name);
+		}
+	    }
+	    if (inherited != null) {
+		inherited.addAll(inheritedNames);
+	    }
+	}
+
+	return changed;
+    }
+
+    /*
+     * Only collects the loggers that should change, whether they did is
+     * checked once the whole batch is set.
+     */
+    private void apply(Node node, J4LogPlugin plugin, boolean inheriting, String inherited,
+	    NavigableMap<String, String> levels, List<Change> changes) {
+
+	String level = levels.containsKey(node.name) ? levels.get(node.name) : inherited;
+	if (level != null) {
+	    for (Binding binding : node.bindings) {
+		Object logger = binding.get();
+		if (logger == null || binding.plugin != plugin) {
+		    continue;
+		}
+		String previous = plugin.getLoggerLevel(logger);
+		previous = previous == null ? LogLevel.INDETERMINATE.name() : previous;
+		// Loggers already at the level may still lose the one they
+		// inherit
+		boolean ownLevel = !inheriting || plugin.hasOwnLoggerLevel(logger);
+		if (previous.equals(level) && ownLevel) {
+		    continue;
+		}
+		// Inherited levels are only read here, even when forced,
+		// setting them would change the descendants before their
+		// previous levels are read
+		if (!inheriting) {
+		    plugin.setLoggerLevel(logger, level);
+		}
+		changes.add(new Change(node.name, logger, previous, !ownLevel));
+	    }
+	}
+
+	for (Node child : node.children.values()) {
+	    if (reaches(child, level, levels)) {
+		apply(child, plugin, inheriting, level, levels, changes);
+	    }
+	}
+    }
+
+    /*
+     * Top down, so each logger finds the levels of its ancestors already set
+     * when it's asked to inherit.
+     */
+    private void inherit(Node node, J4LogPlugin plugin, boolean force, String inherited,
+	    NavigableMap<String, String> levels) {
+
+	boolean subtreeRoot = levels.containsKey(node.name);
+	String level = subtreeRoot ? levels.get(node.name) : inherited;
+	if (level != null) {
+	    for (Binding binding : node.bindings) {
+		Object logger = binding.get();
+		if (logger == null || binding.plugin != plugin) {
+		    continue;
+		}
+		if (subtreeRoot || force || !plugin.inheritLoggerLevel(logger, level)) {
+		    plugin.setLoggerLevel(logger, level);
+		}
+	    }
+	}
+
+	for (Node child : node.children.values()) {
+	    if (reaches(child, level, levels)) {
+		inherit(child, plugin, force, level, levels);
+	    }
+	}
+    }
+
+    // Skips the subtrees the batch doesn't reach
+    private static boolean reaches(Node child, String level, NavigableMap<String, String> levels) {
+
+	return level != null || levels.containsKey(child.name)
+		|| !levels.subMap(child.name + ".", child.name + "/").isEmpty();
+    }
+
+    private void collect(Node node, J4LogPlugin plugin, String like, Map<String, String> loggers) {
+
+	if (FanOut.PARALLELISM < 2 || size.get() < PARALLEL_THRESHOLD) {
+	    collectSequentially(node, plugin, like, loggers);
+	    return;
+	}
+
+	for (Entry<String, String> entry : FanOut.POOL.invoke(new CollectTask(node, plugin, like))) {
+	    loggers.put(entry.getKey(), entry.getValue());
+	}
+    }
+
+    private static void collectSequentially(Node node, J4LogPlugin plugin, String like, Map<String, String> loggers) {
+
+	if (like == null || node.name.toLowerCase().contains(like)) {
+	    String level = node.level(plugin);
+	    if (level != null) {
+		loggers.put(node.name, level);
+	    }
+	}
+	for (Node child : node.children.values()) {
+	    collectSequentially(child, plugin, like, loggers);
+	}
+    }
+
+    private Node findNode(String name) {
+
+	if (name == null) {
+	    return null;
+	}
+
+	Node node = root;
+	int start = 0;
+	while (node != null && start < name.length()) {
+	    int end = name.indexOf('.', start);
+	    end = end < 0 ? name.length() : end;
+	    node = node.children.get(name.substring(start, end));
+	    start = end + 1;
+	}
+
+	return node;
+    }
+
+    private Node getOrCreateNode(String name) {
+
+	Node node = root;
+	int start = 0;
+	while (start < name.length()) {
+	    int end = name.indexOf('.', start);
+	    end = end < 0 ? name.length() : end;
+	    String segment = name.substring(start, end);
+	    Node child = node.children.get(segment);
+	    if (child == null) {
+		Node created = new Node(name.substring(0, end));
+		child = node.children.putIfAbsent(segment, created);
+		child = child == null ? created : child;
+	    }
+	    node = child;
+	    start = end + 1;
+	}
+
+	return node;
+    }
+
+    private AtomicInteger pluginSize(J4LogPlugin plugin) {
+
+	AtomicInteger pluginSize = pluginSizes.get(plugin);
+	if (pluginSize == null) {
+	    AtomicInteger created = new AtomicInteger();
+	    pluginSize = pluginSizes.putIfAbsent(plugin, created);
+	    pluginSize = pluginSize == null ? created : pluginSize;
+	}
+
+	return pluginSize;
+    }
+
+    private void expungeCollected() {
+
+	Reference<?> reference;
+	while ((reference = collected.poll()) != null) {
+	    Binding collectedBinding = (Binding) reference;
+	    Node node = collectedBinding.node;
+	    synchronized (node) {
+		List<Binding> remaining = new ArrayList<>(node.bindings.length);
+		for (Binding binding : node.bindings) {
+		    if (binding != collectedBinding) {
+			remaining.add(binding);
+		    }
+		}
+		if (remaining.size() == node.bindings.length) {
+		    continue;
+		}
+		node.bindings = remaining.isEmpty() ? NO_BINDINGS : remaining.toArray(NO_BINDINGS);
+		if (remaining.isEmpty()) {
+		    size.decrementAndGet();
+		    version.incrementAndGet();
+		}
+		if (!node.hasBindings(collectedBinding.plugin)) {
+		    pluginSize(collectedBinding.plugin).decrementAndGet();
+		}
+	    }
+	}
+    }
+
+    /*
+     * Nodes are never removed from the trie, names usually come back as soon
+     * as the application owning them gets redeployed.
+     */
+    private static class Node {
+
+	private final String name;
+	private final ConcurrentSkipListMap<String, Node> children = new ConcurrentSkipListMap<>();
+	private volatile Binding[] bindings = NO_BINDINGS;
+
+	private Node(String name) {
+	    this.name = name;
+	}
+
+	private boolean hasBindings(J4LogPlugin plugin) {
+
+	    for (Binding binding : bindings) {
+		if (plugin == null || binding.plugin == plugin) {
+		    return true;
+		}
+	    }
+
+	    return false;
+	}
+
+	private String level(J4LogPlugin plugin) {
+
+	    String result = null;
+	    for (Binding binding : bindings) {
+		Object logger = binding.get();
+		if (logger == null || (plugin != null && binding.plugin != plugin)) {
+		    continue;
+		}
+		String level = binding.plugin.getLoggerLevel(logger);
+		level = level == null ? LogLevel.INDETERMINATE.name() : level;
+		if (result != null && !result.equals(level)) {
+		    // Instances disagree, better not to mislead the client
+		    return LogLevel.INDETERMINATE.name();
+		}
+		result = level;
+	    }
+
+	    return result;
+	}
+    }
+
+    /*
+     * Bounded pool for the aggregate queries, created on first use so that the
+     * agent arguments are already in place.
+     */
+    private static class FanOut {
+
+	private static final int PARALLELISM = Integer.getInteger(PARALLELISM_PROPERTY, Runtime.getRuntime()
+		.availableProcessors());
+	private static final ForkJoinPool POOL = new ForkJoinPool(Math.max(PARALLELISM, 1));
+    }
+
+    /*
+     * Collects a subtree reading the levels of its loggers, which means a call
+     * per instance into every class loader having it, in parallel. Subtrees
+     * get forked while the pool is short of queued work and collected in place
+     * otherwise.
+     */
+    private static class CollectTask extends RecursiveTask<List<Entry<String, String>>> {
+
+	private static final long serialVersionUID = 1L;
+
+	private final Node node;
+	private final J4LogPlugin plugin;
+	private final String like;
+
+	private CollectTask(Node node, J4LogPlugin plugin, String like) {
+	    this.node = node;
+	    this.plugin = plugin;
+	    this.like = like;
+	}
+
+	@Override
+	protected List<Entry<String, String>> compute() {
+
+	    List<Entry<String, String>> entries = new ArrayList<>();
+	    if (like == null || node.name.toLowerCase().contains(like)) {
+		String level = node.level(plugin);
+		if (level != null) {
+		    entries.add(new SimpleImmutableEntry<>(node.name, level));
+		}
+	    }
+
+	    List<CollectTask> forked = new ArrayList<>();
+	    Map<String, String> collected = null;
+	    for (Node child : node.children.values()) {
+		if (getSurplusQueuedTaskCount() < SURPLUS_TASKS) {
+		    CollectTask task = new CollectTask(child, plugin, like);
+		    task.fork();
+		    forked.add(task);
+		} else {
+		    collected = collected == null ? new TreeMap<String, String>() : collected;
+		    collectSequentially(child, plugin, like, collected);
+		}
+	    }
+
+	    if (collected != null) {
+		entries.addAll(collected.entrySet());
+	    }
+	    for (CollectTask task : forked) {
+		entries.addAll(task.join());
+	    }
+
+	    return entries;
+	}
+    }
+
+    private static class Snapshot {
+
+	private final long version;
+	private final String[] names;
+	private final Node[] nodes;
+
+	private Snapshot(long version, List<Node> nodes) {
+
+	    // Trie order isn't the names natural order, e.g. "a-b" comes after
+	    // "a.b" in the trie, so cursors are sought on a sorted copy
+	    Map<String, Node> sorted = new TreeMap<>();
+	    for (Node node : nodes) {
+		sorted.put(node.name, node);
+	    }
+	    this.version = version;
+	    this.names = sorted.keySet().toArray(new String[sorted.size()]);
+	    this.nodes = sorted.values().toArray(new Node[sorted.size()]);
+	}
+    }
+
+    // Holds the logger until the batch is over
+    private static class Change {
+
+	private final String name;
+	private final Object logger;
+	private final String previous;
+	private final boolean inherited;
+
+	private Change(String name, Object logger, String previous, boolean inherited) {
+	    this.name = name;
+	    this.logger = logger;
+	    this.previous = previous;
+	    this.inherited = inherited;
+	}
+    }
+
+    private static class Binding extends WeakReference<Object> {
+
+	private final J4LogPlugin plugin;
+	private final Node node;
+
+	private Binding(J4LogPlugin plugin, Node node, Object logger, ReferenceQueue<Object> queue) {
+	    super(logger, queue);
+	    this.plugin = plugin;
+	    this.node = node;
+	}
+    }
+
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2016 Camilo Bermúdez
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.huitaca.j4log;
+
+import java.math.BigDecimal;
+
+/**
+ * A level letting through only a sample of the events below INFO, written
+ * <code>DEBUG@1%</code> for a random percentage of them or
+ * <code>DEBUG@1/100</code> for one event in every N issued by each logger.
+ *
+ * The rate is encoded into a single <code>int</code> field injected into the
+ * logger classes, next to a counter, so the code deciding whether an event
+ * goes through only reads fields: positive for one in N, negative for the
+ * events per ten thousand, zero when not sampling.
+ */
+public final class Sampling {
+
+    public static final String RATE_FIELD_NAME = "_j4logSamplingRate";
+    public static final String COUNTER_FIELD_NAME = "_j4logSamplingCounter";
+
+    private static final int PER_MYRIAD = 10000;
+    private static final char SEPARATOR = '@';
+
+    private final LogLevel level;
+    private final int rate;
+
+    private Sampling(LogLevel level, int rate) {
+	this.level = level;
+	this.rate = rate;
+    }
+
+    /**
+     * @param level
+     *            a {@link LogLevel} name, optionally followed by a sampling
+     *            rate.
+     * @return
+     * @throws IllegalArgumentException
+     *             if the level or the rate are malformed.
+     */
+    public static Sampling parse(String level) {
+
+	int separator = level.indexOf(SEPARATOR);
+	if (separator < 0) {
+	    return new Sampling(LogLevel.valueOf(level.trim()), 0);
+	}
+
+	LogLevel logLevel = LogLevel.valueOf(level.substring(0, separator).trim());
+	String rate = level.substring(separator + 1).trim();
+	if (rate.endsWith("%")) {
+	    int perMyriad = new BigDecimal(rate.substring(0, rate.length() - 1).trim()).movePointRight(2).intValue();
+	    if (perMyriad < 1 || perMyriad > PER_MYRIAD) {
+		throw new IllegalArgumentException("Sampling percentage out of range: " + level);
+	    }
+	    return new Sampling(logLevel, -perMyriad);
+	}
+	if (rate.startsWith("1/")) {
+	    int every = Integer.parseInt(rate.substring(2).trim());
+	    if (every < 1) {
+		throw new IllegalArgumentException("Sampling rate out of range: " + level);
+	    }
+	    return new Sampling(logLevel, every);
+	}
+
+	throw new IllegalArgumentException("Malformed sampling rate: " + level);
+    }
+
+    /**
+     * @param level
+     * @param rate
+     *            as stored in the injected field.
+     * @return the level followed by its sampling rate, if any.
+     */
+    public static String format(String level, int rate) {
+
+	if (rate == 0 || level == null) {
+	    return level;
+	}
+	if (rate > 0) {
+	    return level + SEPARATOR + "1/" + rate;
+	}
+	return level + SEPARATOR + BigDecimal.valueOf(-rate, 2).stripTrailingZeros().toPlainString() + "%";
+    }
+
+    /**
+     * @return the declarations of the fields holding the sampling state.
+     */
+    public static String[] fieldsSrc() {
+
+	return new String[] { "public volatile int " + RATE_FIELD_NAME + ";",
+		"public int " + COUNTER_FIELD_NAME + ";" };
+    }
+
+    /**
+     * Returns the source of a statement leaving the method being injected when
+     * the event gets sampled out. The counter is incremented without
+     * synchronization, concurrent events may share a count but no lock is
+     * taken, and nothing gets allocated.
+     *
+     * @param rateExpr
+     *            evaluates to the rate of the logger holding the level.
+     * @param counterHolder
+     *            the logger whose counter gets incremented.
+     * @param exitStmt
+     *            the statement leaving the method.
+     * @return
+     */
+    public static String skipSrc(String rateExpr, String counterHolder, String exitStmt) {
+
+	String counter = counterHolder + "." + COUNTER_FIELD_NAME;
+	return "{"
+		+ "int rate = " + rateExpr + ";"
+		+ "if (rate > 0) {"
+		    + counter + " = " + counter + " + 1;"
+		    + "if (" + counter + " % rate != 0) {" + exitStmt + "}"
+		+ "} else if (rate < 0 && java.util.concurrent.ThreadLocalRandom.current().nextInt(" + PER_MYRIAD
+			+ ") >= -rate) {"
+		    + exitStmt
+		+ "}"
+		+ "}";
+    }
+
+    public LogLevel getLevel() {
+	return level;
+    }
+
+    public int getRate() {
+	return rate;
+    }
+
+    public boolean isSampled() {
+	return rate != 0;
+    }
+
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2016 Camilo Bermúdez
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.huitaca.j4log.async;
+
+import java.io.PrintStream;
+import java.util.List;
+import java.util.logging.ErrorManager;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.SimpleFormatter;
+
+/**
+ * *** ONLY USED IN AGENT MODE ***
+ *
+ * JUL console handler injected into the root logger when
+ * {@value #ASYNC_PROPERTY} is set. Records are formatted and written to
+ * <code>System.out</code> by a background thread, one flush per batch.
+ */
+public class AsyncConsoleHandler extends Handler {
+
+    public static final String ASYNC_PROPERTY = "j4log.jul.async";
+    public static final String CAPACITY_PROPERTY = "j4log.jul.async.capacity";
+    public static final String OVERFLOW_PROPERTY = "j4log.jul.async.overflow";
+
+    private static final int DEFAULT_CAPACITY = 8192;
+    private static final int BATCH_SIZE = 256;
+    private static final long CLOSE_TIMEOUT_MILLIS = 5000;
+    private static final int WARN = Level.WARNING.intValue();
+
+    private final AsyncWriter<LogRecord> writer;
+
+    public AsyncConsoleHandler() {
+
+	setFormatter(new SimpleFormatter());
+	setLevel(Level.ALL);
+	writer = new AsyncWriter<LogRecord>("j4log-jul-console", Integer.getInteger(CAPACITY_PROPERTY,
+		DEFAULT_CAPACITY), BATCH_SIZE, OverflowPolicy.parse(System.getProperty(OVERFLOW_PROPERTY),
+		OverflowPolicy.BLOCK)) {
+
+	    @Override
+	    protected void write(List<LogRecord> batch) {
+
+		StringBuilder text = new StringBuilder();
+		for (LogRecord record : batch) {
+		    try {
+			text.append(getFormatter().format(record));
+		    } catch (Exception e) {
+			reportError(null, e, ErrorManager.FORMAT_FAILURE);
+		    }
+		}
+		PrintStream out = System.out;
+		out.print(text);
+		out.flush();
+	    }
+	};
+	writer.start();
+    }
+
+    @Override
+    public void publish(LogRecord record) {
+
+	if (!isLoggable(record)) {
+	    return;
+	}
+	// The source gets inferred from the stack, it must be done by the
+	// calling thread
+	record.getSourceClassName();
+	writer.enqueue(record, record.getLevel().intValue() >= WARN);
+    }
+
+    /**
+     * Nothing to do, the writer flushes after each batch.
+     */
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() throws SecurityException {
+	writer.close(CLOSE_TIMEOUT_MILLIS);
+    }
+
+    public long getDropped() {
+	return writer.getDropped();
+    }
+
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2016 Camilo Bermúdez
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.huitaca.j4log.async;
+
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Background thread draining a {@link RingBuffer} in batches, the base of the
+ * asynchronous appenders injected into the logging frameworks. Callers only
+ * pay for publishing the event into the buffer and, if the writer sleeps, for
+ * waking it up.
+ *
+ * @param <E>
+ */
+public abstract class AsyncWriter<E> implements Runnable {
+
+    private static final AtomicLong TOTAL_DROPPED = new AtomicLong();
+
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long FULL_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private final RingBuffer<E> buffer;
+    private final int batchSize;
+    private final OverflowPolicy policy;
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread thread;
+    private volatile boolean idle;
+    private volatile boolean closed;
+
+    protected AsyncWriter(String name, int capacity, int batchSize, OverflowPolicy policy) {
+
+	this.buffer = new RingBuffer<>(capacity);
+	this.batchSize = batchSize;
+	this.policy = policy;
+	this.thread = newThread(name);
+    }
+
+    /*
+     * Created privileged and without a context class loader, the thread would
+     * otherwise keep the class loader of the application that happened to
+     * create it.
+     */
+    private Thread newThread(final String name) {
+
+	return AccessController.doPrivileged(new PrivilegedAction<Thread>() {
+
+	    @Override
+	    public Thread run() {
+
+		Thread thread = new Thread(AsyncWriter.this, name);
+		thread.setDaemon(true);
+		thread.setContextClassLoader(null);
+		return thread;
+	    }
+	});
+    }
+
+    /**
+     * Writes a batch of events, flushing the output once at the end.
+     * 
+     * @param batch
+     * @throws Exception
+     */
+    protected abstract void write(List<E> batch) throws Exception;
+
+    public void start() {
+	thread.start();
+    }
+
+    /**
+     * Hands an event to the writer thread, applying the overflow policy if
+     * the buffer is full.
+     * 
+     * @param event
+     * @param severe
+     *            whether the event is WARN or above.
+     * @return <code>false</code> if the event was dropped.
+     */
+    public boolean enqueue(E event, boolean severe) {
+
+	while (closed || !buffer.offer(event)) {
+	    if (closed || !policy.blocks(severe)) {
+		dropped.incrementAndGet();
+		TOTAL_DROPPED.incrementAndGet();
+		return false;
+	    }
+	    LockSupport.unpark(thread);
+	    LockSupport.parkNanos(this, FULL_PARK_NANOS);
+	}
+	if (idle) {
+	    LockSupport.unpark(thread);
+	}
+
+	return true;
+    }
+
+    /**
+     * Stops accepting events and waits for the ones already buffered to be
+     * written.
+     * 
+     * @param timeoutMillis
+     */
+    public void close(long timeoutMillis) {
+
+	closed = true;
+	LockSupport.unpark(thread);
+	if (Thread.currentThread() != thread) {
+	    try {
+		thread.join(timeoutMillis);
+	    } catch (InterruptedException e) {
+		Thread.currentThread().interrupt();
+	    }
+	}
+    }
+
+    /**
+     * Waits for the events buffered so far to be taken by the writer thread,
+     * which keeps running.
+     * 
+     * @param timeoutMillis
+     */
+    public void flush(long timeoutMillis) {
+
+	if (Thread.currentThread() == thread) {
+	    return;
+	}
+	long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+	while (buffer.size() > 0 && deadline - System.nanoTime() > 0) {
+	    LockSupport.unpark(thread);
+	    LockSupport.parkNanos(this, FULL_PARK_NANOS);
+	}
+    }
+
+    @Override
+    public void run() {
+
+	List<E> batch = new ArrayList<>(batchSize);
+	while (true) {
+	    if (buffer.drainTo(batch, batchSize) > 0) {
+		try {
+		    write(batch);
+		} catch (Exception e) {
+		    e.printStackTrace();
+		}
+		batch.clear();
+		continue;
+	    }
+	    if (buffer.size() > 0) {
+		// Claimed by a producer but not published yet
+		Thread.yield();
+		continue;
+	    }
+	    if (closed) {
+		return;
+	    }
+	    idle = true;
+	    if (buffer.size() == 0 && !closed) {
+		LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+	    }
+	    idle = false;
+	}
+    }
+
+    public long getDropped() {
+	return dropped.get();
+    }
+
+    public int getBuffered() {
+	return buffer.size();
+    }
+
+    /**
+     * @return the events dropped by every writer in this JVM.
+     */
+    public static long getTotalDropped() {
+	return TOTAL_DROPPED.get();
+    }
+
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright 2016 Camilo Bermúdez
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.huitaca.j4log.async;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodHandles.Lookup;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.List;
+
+/**
+ * *** ONLY USED IN AGENT MODE ***
+ *
+ * log4j 1.x console appender attached by j4log to the root logger of each
+ * hierarchy, additivity brings every event to it exactly once.
+ *
+ * j4log doesn't link against log4j, which may be bundled by several
+ * applications, so the appender is a proxy of the
+ * <code>org.apache.log4j.Appender</code> interface of the class loader at
+ * hand. The calling thread only takes the event data that can't wait (thread
+ * name, NDC, MDC, message, throwable) and publishes it into a
+ * {@link RingBuffer}, a background {@link AsyncWriter} formats the events and
+ * writes them to stdout in batches through a {@link FileChannel}.
+ *
+ * A single writer serves the appenders of every hierarchy, each event queued
+ * together with the appender formatting it, so redeploying applications
+ * doesn't leave threads behind. log4j closes the appenders of the root logger
+ * every time it gets configured, and j4log attaches this one again right
+ * after, so closing it only flushes the events buffered.
+ */
+public class Log4JAsyncAppender implements InvocationHandler {
+
+    public static final String CAPACITY_PROPERTY = "j4log.log4j.async.capacity";
+    public static final String OVERFLOW_PROPERTY = "j4log.log4j.async.overflow";
+
+    private static final String LOG4J_APPENDER = "org.apache.log4j.Appender";
+    private static final String LOG4J_LOGGING_EVENT = "org.apache.log4j.spi.LoggingEvent";
+    private static final String LOG4J_LEVEL = "org.apache.log4j.Level";
+    private static final String LOG4J_PATTERN_LAYOUT = "org.apache.log4j.PatternLayout";
+    private static final int LOG4J_WARN_INT = 30000;
+
+    private static final int DEFAULT_CAPACITY = 8192;
+    private static final int BATCH_SIZE = 256;
+    private static final long FLUSH_TIMEOUT_MILLIS = 5000;
+    private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+    private static final Charset CHARSET = Charset.defaultCharset();
+    private static final FileChannel STDOUT = new FileOutputStream(FileDescriptor.out).getChannel();
+
+    private static final MethodType GET_STRINGS_TYPE = MethodType.methodType(String[].class, Object.class);
+    private static final MethodType GET_OBJECT_TYPE = MethodType.methodType(Object.class, Object.class);
+    private static final MethodType GET_INT_TYPE = MethodType.methodType(int.class, Object.class);
+    private static final MethodType ACCEPT_TYPE = MethodType.methodType(void.class, Object.class);
+    private static final MethodType FORMAT_TYPE = MethodType.methodType(String.class, Object.class, Object.class);
+    private static final MethodType IS_TYPE = MethodType.methodType(boolean.class, Object.class);
+
+    private static final AsyncWriter<Queued> WRITER = new AsyncWriter<Queued>("j4log-log4j-console",
+	    Integer.getInteger(CAPACITY_PROPERTY, DEFAULT_CAPACITY), BATCH_SIZE, OverflowPolicy.parse(
+		    System.getProperty(OVERFLOW_PROPERTY), OverflowPolicy.BLOCK)) {
+
+	@Override
+	protected void write(List<Queued> batch) throws Exception {
+	    try {
+		Log4JAsyncAppender.write(batch);
+	    } catch (Exception | Error e) {
+		throw e;
+	    } catch (Throwable e) {
+		throw new IllegalStateException(e);
+	    }
+	}
+    };
+
+    static {
+	WRITER.start();
+    }
+
+    // The getters filling the caches of the event, their results dropped
+    private final MethodHandle getThreadName;
+    private final MethodHandle getNDC;
+    private final MethodHandle getMDCCopy;
+    private final MethodHandle getRenderedMessage;
+    private final MethodHandle fillThrowableStrRep;
+
+    private final MethodHandle getThrowableStrRep;
+    private final MethodHandle getLevel;
+    private final MethodHandle toInt;
+    private final MethodHandle format;
+    private final Object layout;
+    private final boolean ignoresThrowable;
+    private volatile String name;
+    private volatile Object errorHandler;
+
+    /**
+     * @param classLoader
+     *            the class loader of the log4j classes.
+     * @param pattern
+     *            a <code>PatternLayout</code> conversion pattern.
+     * @return an <code>org.apache.log4j.Appender</code> instance.
+     * @throws Exception
+     */
+    public static Object create(ClassLoader classLoader, String pattern) throws Exception {
+
+	Class<?> appenderClass = Class.forName(LOG4J_APPENDER, false, classLoader);
+	return Proxy.newProxyInstance(classLoader, new Class<?>[] { appenderClass },
+		new Log4JAsyncAppender(classLoader, pattern));
+    }
+
+    private Log4JAsyncAppender(ClassLoader classLoader, String pattern) {
+
+	try {
+	    Class<?> eventClass = Class.forName(LOG4J_LOGGING_EVENT, false, classLoader);
+	    Class<?> levelClass = Class.forName(LOG4J_LEVEL, false, classLoader);
+	    Class<?> layoutClass = Class.forName(LOG4J_PATTERN_LAYOUT, false, classLoader);
+	    Lookup lookup = MethodHandles.publicLookup().in(eventClass);
+
+	    getThreadName = lookup.findVirtual(eventClass, "getThreadName", MethodType.methodType(String.class))
+		    .asType(ACCEPT_TYPE);
+	    getNDC = lookup.findVirtual(eventClass, "getNDC", MethodType.methodType(String.class)).asType(
+		    ACCEPT_TYPE);
+	    getMDCCopy = lookup.findVirtual(eventClass, "getMDCCopy", MethodType.methodType(void.class)).asType(
+		    ACCEPT_TYPE);
+	    getRenderedMessage = lookup.findVirtual(eventClass, "getRenderedMessage",
+		    MethodType.methodType(String.class)).asType(ACCEPT_TYPE);
+	    getThrowableStrRep = lookup.findVirtual(eventClass, "getThrowableStrRep",
+		    MethodType.methodType(String[].class)).asType(GET_STRINGS_TYPE);
+	    fillThrowableStrRep = getThrowableStrRep.asType(ACCEPT_TYPE);
+	    getLevel = lookup.findVirtual(eventClass, "getLevel", MethodType.methodType(levelClass)).asType(
+		    GET_OBJECT_TYPE);
+	    toInt = lookup.findVirtual(levelClass, "toInt", MethodType.methodType(int.class)).asType(GET_INT_TYPE);
+
+	    layout = lookup.findConstructor(layoutClass, MethodType.methodType(void.class, String.class)).invoke(
+		    pattern);
+	    format = lookup.findVirtual(layoutClass, "format", MethodType.methodType(String.class, eventClass))
+		    .asType(FORMAT_TYPE);
+	    ignoresThrowable = (boolean) lookup.findVirtual(layoutClass, "ignoresThrowable",
+		    MethodType.methodType(boolean.class)).asType(IS_TYPE).invokeExact(layout);
+	} catch (Throwable e) {
+	    throw new IllegalStateException("Unable to bind log4j accessors for " + classLoader, e);
+	}
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+
+	switch (method.getName()) {
+	case "doAppend":
+	    append(args[0]);
+	    return null;
+	case "close":
+	    WRITER.flush(FLUSH_TIMEOUT_MILLIS);
+	    return null;
+	case "getName":
+	    return name;
+	case "setName":
+	    name = (String) args[0];
+	    return null;
+	case "getErrorHandler":
+	    return errorHandler;
+	case "setErrorHandler":
+	    errorHandler = args[0];
+	    return null;
+	case "getLayout":
+	    return layout;
+	case "requiresLayout":
+	    return Boolean.FALSE;
+	case "equals":
+	    return proxy == args[0];
+	case "hashCode":
+	    return System.identityHashCode(proxy);
+	case "toString":
+	    return "j4log asynchronous console appender";
+	default:
+	    // Filters and layouts set from the outside aren't supported
+	    return null;
+	}
+    }
+
+    private void append(Object event) throws Throwable {
+
+	// Same as log4j's AsyncAppender, what depends on the calling thread
+	// or may change later gets copied into the event now
+	getThreadName.invokeExact(event);
+	getNDC.invokeExact(event);
+	getMDCCopy.invokeExact(event);
+	getRenderedMessage.invokeExact(event);
+	fillThrowableStrRep.invokeExact(event);
+	int level = (int) toInt.invokeExact((Object) getLevel.invokeExact(event));
+
+	WRITER.enqueue(new Queued(this, event), level >= LOG4J_WARN_INT);
+    }
+
+    private void format(Object event, StringBuilder text) throws Throwable {
+
+	text.append((String) format.invokeExact(layout, event));
+	if (ignoresThrowable) {
+	    String[] throwable = (String[]) getThrowableStrRep.invokeExact(event);
+	    if (throwable != null) {
+		for (String line : throwable) {
+		    text.append(line).append(LINE_SEPARATOR);
+		}
+	    }
+	}
+    }
+
+    private static void write(List<Queued> batch) throws Throwable {
+
+	StringBuilder text = new StringBuilder();
+	for (Queued queued : batch) {
+	    queued.appender.format(queued.event, text);
+	}
+
+	ByteBuffer bytes = CHARSET.encode(CharBuffer.wrap(text));
+	try {
+	    while (bytes.hasRemaining()) {
+		STDOUT.write(bytes);
+	    }
+	} catch (IOException e) {
+	    e.printStackTrace();
+	}
+    }
+
+    private static class Queued {
+
+	private final Log4JAsyncAppender appender;
+	private final Object event;
+
+	private Queued(Log4JAsyncAppender appender, Object event) {
+	    this.appender = appender;
+	    this.event = event;
+	}
+    }
+
+}
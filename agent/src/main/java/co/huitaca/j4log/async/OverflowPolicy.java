@@ -0,0 +1,61 @@
+/*
+ * Copyright 2016 Camilo Bermúdez
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.huitaca.j4log.async;
+
+/**
+ * What an asynchronous appender does with an event that doesn't fit in its
+ * buffer.
+ */
+public enum OverflowPolicy {
+
+    /**
+     * The calling thread waits until there's room.
+     */
+    BLOCK,
+
+    /**
+     * The event is discarded.
+     */
+    DROP,
+
+    /**
+     * Events below WARN are discarded, the rest wait until there's room.
+     */
+    DROP_BELOW_WARN;
+
+    public static OverflowPolicy parse(String policy, OverflowPolicy defaultPolicy) {
+
+	if (policy == null) {
+	    return defaultPolicy;
+	}
+	try {
+	    return valueOf(policy.trim().toUpperCase());
+	} catch (IllegalArgumentException e) {
+	    System.out.println("Unknown overflow policy " + policy + ", using " + defaultPolicy);
+	    return defaultPolicy;
+	}
+    }
+
+    /**
+     * @param severe
+     *            whether the event is WARN or above.
+     * @return whether the calling thread should wait for room.
+     */
+    public boolean blocks(boolean severe) {
+	return this == BLOCK || (this == DROP_BELOW_WARN && severe);
+    }
+
+}
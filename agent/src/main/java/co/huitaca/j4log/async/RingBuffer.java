@@ -0,0 +1,109 @@
+/*
+ * Copyright 2016 Camilo Bermúdez
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.huitaca.j4log.async;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded, lock-free, multiple producers and single consumer queue.
+ *
+ * Producers claim a slot with a CAS on the tail and then publish the element
+ * into it, the consumer takes elements in order until it reaches a slot not
+ * published yet. Nothing gets allocated per element.
+ *
+ * @param <E>
+ */
+public class RingBuffer<E> {
+
+    private final AtomicReferenceArray<E> slots;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * @param capacity
+     *            rounded up to the next power of two.
+     */
+    public RingBuffer(int capacity) {
+
+	int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+	this.slots = new AtomicReferenceArray<>(size);
+	this.mask = size - 1;
+    }
+
+    /**
+     * May be called by any thread.
+     * 
+     * @param element
+     * @return <code>false</code> if the buffer is full.
+     */
+    public boolean offer(E element) {
+
+	if (element == null) {
+	    throw new NullPointerException();
+	}
+	long claimed;
+	do {
+	    claimed = tail.get();
+	    if (claimed - head.get() >= slots.length()) {
+		return false;
+	    }
+	} while (!tail.compareAndSet(claimed, claimed + 1));
+	slots.lazySet((int) claimed & mask, element);
+
+	return true;
+    }
+
+    /**
+     * Only called by the consumer thread.
+     * 
+     * @param batch
+     * @param max
+     * @return how many elements were moved into the batch.
+     */
+    public int drainTo(Collection<? super E> batch, int max) {
+
+	long taken = head.get();
+	int count = 0;
+	for (; count < max; count++, taken++) {
+	    int slot = (int) taken & mask;
+	    E element = slots.get(slot);
+	    if (element == null) {
+		break;
+	    }
+	    slots.lazySet(slot, null);
+	    batch.add(element);
+	}
+	head.lazySet(taken);
+
+	return count;
+    }
+
+    /**
+     * @return the number of claimed slots, some of them may not be published
+     *         yet.
+     */
+    public int size() {
+	return (int) (tail.get() - head.get());
+    }
+
+    public int capacity() {
+	return slots.length();
+    }
+
+}
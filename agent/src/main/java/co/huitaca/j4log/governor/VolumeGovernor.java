@@ -0,0 +1,325 @@
+/*
+ * Copyright 2016 Camilo Bermúdez
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.huitaca.j4log.governor;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import co.huitaca.j4log.J4LogPlugin;
+import co.huitaca.j4log.LogLevel;
+import co.huitaca.j4log.LoggerRegistry;
+import co.huitaca.j4log.Sampling;
+import co.huitaca.j4log.plugins.PluginManager;
+import co.huitaca.j4log.timer.HashedWheelTimer;
+
+/**
+ * Keeps the events emitted by the loggers under a budget of events per
+ * second. Every second the rates are taken from the event counters, see
+ * {@link co.huitaca.j4log.EventCounters}, and while over budget the noisiest
+ * loggers get their level raised, each one just enough to drop the excess if
+ * it can, up to ERROR.
+ *
+ * Levels are restored once the rate stays under half the budget for a while,
+ * one logger per second, the last one throttled first, so the rate doesn't
+ * bounce back over the budget at once.
+ */
+public class VolumeGovernor {
+
+    public static final String BUDGET_PROPERTY = "j4log.eventBudget";
+
+    private static final double LOW_WATERMARK = 0.5;
+    private static final int CALM_TICKS = 10;
+    private static final int MAX_ACTIONS = 100;
+
+    private static final LogLevel[] RAISED_LEVELS = { LogLevel.DEBUG, LogLevel.INFO, LogLevel.WARN, LogLevel.ERROR };
+
+    private final LoggerRegistry registry;
+    private final HashedWheelTimer timer;
+    private final LinkedHashMap<String, Throttle> throttled = new LinkedHashMap<>();
+    private final Deque<String> actions = new ArrayDeque<>();
+    private long budget;
+    private Map<String, long[]> lastCounts;
+    private long lastTime;
+    private int calmTicks;
+    private HashedWheelTimer.Timeout timeout;
+
+    public VolumeGovernor(LoggerRegistry registry, HashedWheelTimer timer) {
+	this.registry = registry;
+	this.timer = timer;
+    }
+
+    public synchronized long getBudget() {
+	return budget;
+    }
+
+    /**
+     * @param budget
+     *            events per second, 0 to stop governing. Levels already
+     *            raised are restored once the rate allows it.
+     */
+    public synchronized void setBudget(long budget) {
+
+	this.budget = Math.max(budget, 0);
+	log("budget set to " + this.budget + " events/s");
+	if (timeout == null && (this.budget > 0 || !throttled.isEmpty())) {
+	    lastCounts = registry.getEventCounts();
+	    lastTime = System.nanoTime();
+	    schedule();
+	}
+    }
+
+    /**
+     * @return the loggers whose level was raised, mapped to the level set and
+     *         the levels to restore.
+     */
+    public synchronized Map<String, String> getThrottled() {
+
+	Map<String, String> result = new TreeMap<>();
+	for (Entry<String, Throttle> throttleEntry : throttled.entrySet()) {
+	    Throttle throttle = throttleEntry.getValue();
+	    result.put(throttleEntry.getKey(), throttle.level + " since " + format(throttle.since) + ", then "
+		    + throttle.previousLevels.values());
+	}
+	return result;
+    }
+
+    /**
+     * @return the latest actions taken, the oldest first.
+     */
+    public synchronized String[] getActions() {
+	return actions.toArray(new String[actions.size()]);
+    }
+
+    /*
+     * No delay runs on the next tick of the timer, a second later, a delay of
+     * one tick would take up to two.
+     */
+    private void schedule() {
+
+	timeout = timer.schedule(new Runnable() {
+
+	    @Override
+	    public void run() {
+		tick();
+	    }
+	}, 0, TimeUnit.SECONDS);
+    }
+
+    private synchronized void tick() {
+
+	timeout = null;
+	long now = System.nanoTime();
+	Map<String, long[]> counts = registry.getEventCounts();
+	double seconds = Math.max(now - lastTime, 1) / (double) TimeUnit.SECONDS.toNanos(1);
+	Map<String, double[]> rates = new HashMap<>();
+	double total = 0;
+	for (Entry<String, long[]> countEntry : counts.entrySet()) {
+	    long[] current = countEntry.getValue();
+	    long[] previous = lastCounts.get(countEntry.getKey());
+	    double[] loggerRates = new double[current.length];
+	    for (int i = 0; i < current.length; i++) {
+		long events = current[i] - (previous == null ? 0 : previous[i]);
+		loggerRates[i] = Math.max(events, 0) / seconds;
+		total += loggerRates[i];
+	    }
+	    rates.put(countEntry.getKey(), loggerRates);
+	}
+	lastCounts = counts;
+	lastTime = now;
+
+	try {
+	    if (budget > 0 && total > budget) {
+		calmTicks = 0;
+		throttle(rates, total);
+	    } else if (budget == 0 || total <= budget * LOW_WATERMARK) {
+		// Hysteresis: nothing is restored until the rate stays low
+		if (++calmTicks >= CALM_TICKS || budget == 0) {
+		    restoreLast(total);
+		}
+	    } else {
+		calmTicks = 0;
+	    }
+	} catch (RuntimeException e) {
+	    System.out.println("Error governing log volume.");
+	    e.printStackTrace();
+	}
+
+	if (budget > 0 || !throttled.isEmpty()) {
+	    schedule();
+	}
+    }
+
+    /*
+     * Raises the noisiest loggers first, each to the lowest level dropping the
+     * remaining excess, until the excess is gone.
+     */
+    private void throttle(Map<String, double[]> rates, double total) {
+
+	List<String> noisiest = new ArrayList<>(rates.keySet());
+	final Map<String, Double> totals = new HashMap<>();
+	for (Entry<String, double[]> rateEntry : rates.entrySet()) {
+	    double loggerTotal = 0;
+	    for (double rate : rateEntry.getValue()) {
+		loggerTotal += rate;
+	    }
+	    totals.put(rateEntry.getKey(), loggerTotal);
+	}
+	Collections.sort(noisiest, new Comparator<String>() {
+
+	    @Override
+	    public int compare(String a, String b) {
+		return totals.get(b).compareTo(totals.get(a));
+	    }
+	});
+
+	double excess = total - budget;
+	for (String logger : noisiest) {
+	    if (excess <= 0 || totals.get(logger) == 0) {
+		return;
+	    }
+	    double[] loggerRates = rates.get(logger);
+	    LogLevel current = getThreshold(logger);
+	    if (current == null) {
+		continue;
+	    }
+	    for (LogLevel level : RAISED_LEVELS) {
+		if (level.ordinal() <= current.ordinal()) {
+		    continue;
+		}
+		double dropped = 0;
+		for (int i = 0; i < level.ordinal(); i++) {
+		    dropped += loggerRates[i];
+		}
+		if (dropped >= excess || level == LogLevel.ERROR) {
+		    if (dropped > 0) {
+			raise(logger, current, level, totals.get(logger), total);
+			excess -= dropped;
+		    }
+		    break;
+		}
+	    }
+	}
+    }
+
+    /*
+     * The level the logger emits from, null if its instances disagree or it's
+     * already at ERROR or above.
+     */
+    private LogLevel getThreshold(String logger) {
+
+	String level = registry.getLevel(null, logger);
+	if (level == null) {
+	    return null;
+	}
+	try {
+	    LogLevel threshold = Sampling.parse(level).getLevel();
+	    threshold = threshold == LogLevel.ALL ? LogLevel.TRACE : threshold;
+	    return threshold.ordinal() < LogLevel.ERROR.ordinal() ? threshold : null;
+	} catch (IllegalArgumentException e) {
+	    return null;
+	}
+    }
+
+    private void raise(String logger, LogLevel current, LogLevel level, double loggerRate, double total) {
+
+	Throttle throttle = throttled.remove(logger);
+	if (throttle == null) {
+	    throttle = new Throttle(System.currentTimeMillis());
+	    for (J4LogPlugin plugin : PluginManager.getPlugins()) {
+		if (plugin.contains(logger)) {
+		    throttle.previousLevels.put(plugin, plugin.getLevel(logger));
+		    if (plugin.isLevelInherited(logger)) {
+			throttle.inherited.add(plugin);
+		    }
+		}
+	    }
+	}
+	throttle.level = level;
+	// Most recently throttled last, first to be restored
+	throttled.put(logger, throttle);
+	for (J4LogPlugin plugin : throttle.previousLevels.keySet()) {
+	    plugin.setLevel(logger, level.name());
+	}
+	log("raised " + logger + " from " + current + " to " + level + ", " + Math.round(loggerRate) + " of "
+		+ Math.round(total) + " events/s, budget " + budget);
+    }
+
+    private void restoreLast(double total) {
+
+	if (throttled.isEmpty()) {
+	    return;
+	}
+	Iterator<Entry<String, Throttle>> iterator = throttled.entrySet().iterator();
+	Entry<String, Throttle> last = null;
+	while (iterator.hasNext()) {
+	    last = iterator.next();
+	}
+	iterator.remove();
+
+	String logger = last.getKey();
+	Throttle throttle = last.getValue();
+	for (Entry<J4LogPlugin, String> levelEntry : throttle.previousLevels.entrySet()) {
+	    String previous = levelEntry.getValue();
+	    if (throttle.inherited.contains(levelEntry.getKey())) {
+		levelEntry.getKey().inheritLevel(logger);
+	    } else if (previous != null && !LogLevel.INDETERMINATE.name().equals(previous)) {
+		levelEntry.getKey().setLevel(logger, previous);
+	    }
+	}
+	log("restored " + logger + " to " + throttle.previousLevels.values() + ", " + Math.round(total)
+		+ " events/s, budget " + budget);
+    }
+
+    private void log(String action) {
+
+	if (actions.size() == MAX_ACTIONS) {
+	    actions.removeFirst();
+	}
+	actions.addLast(format(System.currentTimeMillis()) + " " + action);
+    }
+
+    private static String format(long time) {
+	return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date(time));
+    }
+
+    private static class Throttle {
+
+	private final long since;
+	private final Map<J4LogPlugin, String> previousLevels = new LinkedHashMap<>();
+	// Plug-ins whose loggers had no level of their own
+	private final Set<J4LogPlugin> inherited = new HashSet<>();
+	private LogLevel level;
+
+	private Throttle(long since) {
+	    this.since = since;
+	}
+    }
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright 2016 Camilo Bermúdez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.huitaca.j4log.instrument;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.IllegalClassFormatException;
+import java.lang.instrument.Instrumentation;
+import java.lang.management.ManagementFactory;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javassist.ClassPool;
+import javassist.LoaderClassPath;
+import javassist.bytecode.Descriptor;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanRegistrationException;
+import javax.management.MalformedObjectNameException;
+import javax.management.NotCompliantMBeanException;
+import javax.management.ObjectName;
+
+import co.huitaca.j4log.J4LogPlugin;
+import co.huitaca.j4log.LevelMatcher;
+import co.huitaca.j4log.LevelRule;
+import co.huitaca.j4log.LevelSnapshot;
+import co.huitaca.j4log.LogLevel;
+import co.huitaca.j4log.jmx.J4Log;
+import co.huitaca.j4log.jmx.J4LogCompact;
+import co.huitaca.j4log.plugins.PluginManager;
+
+public class J4LogAgent {
+
+	public static final String OPTION_PREFIX = "j4log.";
+
+	private static final AtomicBoolean ACTIVATED = new AtomicBoolean();
+
+	// private static final Logger LOGGER =
+	// Logger.getLogger(J4LogAgent.class.getName());
+
+	public static void premain(final String agentArgument,
+			final Instrumentation instrumentation)
+			throws MalformedObjectNameException,
+			InstanceAlreadyExistsException, MBeanRegistrationException,
+			NotCompliantMBeanException {
+
+		    System.out.println("Activating j4Log agent");
+		    if (!ACTIVATED.compareAndSet(false, true)) {
+		    	System.out.println("j4Log agent already active");
+		    	return;
+		    }
+		    applyOptions(agentArgument);
+		    setInitialStates(buildInitialState(agentArgument));
+		    
+		    instrumentation.addTransformer(new Transformer(
+		    		buildObservedClassesMap()), false);
+		    registerMBeans();
+
+	}
+
+	/**
+	 * Entry point when the agent gets attached to a running JVM. The logging
+	 * classes already loaded are retransformed and the loggers created until
+	 * then are taken from the LogManagers found, so there's no need to
+	 * restart.
+	 */
+	public static void agentmain(final String agentArgument,
+			final Instrumentation instrumentation)
+			throws MalformedObjectNameException,
+			InstanceAlreadyExistsException, MBeanRegistrationException,
+			NotCompliantMBeanException {
+
+		    System.out.println("Attaching j4Log agent");
+		    if (!ACTIVATED.compareAndSet(false, true)) {
+		    	System.out.println("j4Log agent already active");
+		    	return;
+		    }
+		    applyOptions(agentArgument);
+		    setInitialStates(buildInitialState(agentArgument));
+
+		    Map<String, List<J4LogPlugin>> observedClassesMap = buildObservedClassesMap();
+		    instrumentation.addTransformer(new Transformer(observedClassesMap),
+		    		true);
+		    registerMBeans();
+		    retransformLoadedClasses(instrumentation, observedClassesMap);
+
+	}
+
+	private static void registerMBeans() throws MalformedObjectNameException,
+			InstanceAlreadyExistsException, MBeanRegistrationException,
+			NotCompliantMBeanException {
+
+		ManagementFactory.getPlatformMBeanServer().registerMBean(
+				J4Log.getInstance(), new ObjectName(J4Log.OBJECT_NAME));
+		ManagementFactory.getPlatformMBeanServer().registerMBean(
+				J4LogCompact.getInstance(), new ObjectName(J4LogCompact.OBJECT_NAME));
+	}
+
+	private static void retransformLoadedClasses(Instrumentation instrumentation,
+			Map<String, List<J4LogPlugin>> observedClassesMap) {
+
+		for (Class<?> loaded : instrumentation.getAllLoadedClasses()) {
+
+			List<J4LogPlugin> plugins = observedClassesMap.get(Descriptor
+					.toJvmName(loaded.getName()));
+			if (plugins == null) {
+				continue;
+			}
+			if (instrumentation.isRetransformClassesSupported()
+					&& instrumentation.isModifiableClass(loaded)) {
+				try {
+					instrumentation.retransformClasses(loaded);
+				} catch (Exception e) {
+					System.out.println("Error retransforming " + loaded.getName()
+							+ " in ClassLoader: " + loaded.getClassLoader());
+					e.printStackTrace();
+				}
+			}
+			for (J4LogPlugin plugin : plugins) {
+				plugin.ensureActive();
+				plugin.onClassFound(loaded);
+			}
+		}
+	}
+
+	/*
+	 * The levels recorded in the snapshot, if any, are only mapped here and
+	 * looked up as loggers get created. The rules file comes first, the agent
+	 * arguments win over the rules as specific as them.
+	 */
+	private static void setInitialStates(Map<String, LogLevel> initialState) {
+		List<LevelRule> rules = new ArrayList<LevelRule>();
+		String rulesFile = System.getProperty(LevelRule.RULES_PROPERTY);
+		if (rulesFile != null) {
+			try {
+				rules.addAll(LevelRule.load(new File(rulesFile)));
+			} catch (IOException e) {
+				System.out.println("Error loading level rules from " + rulesFile);
+				e.printStackTrace();
+			}
+		}
+		rules.addAll(LevelRule.prefixes(initialState));
+		LevelMatcher initialLevels = new LevelMatcher(rules);
+		LevelSnapshot snapshot = LevelSnapshot.getInstance();
+		for (J4LogPlugin plugin : PluginManager.getPlugins()) {
+			plugin.setInitialLevels(initialLevels);
+			plugin.setSnapshot(snapshot);
+		}
+	}
+	
+	/**
+	 * Agent arguments starting with {@value #OPTION_PREFIX} aren't loggers but
+	 * j4log options, e.g. <code>j4log.parallelism=4</code>. They're published
+	 * as system properties unless already set on the command line.
+	 */
+	private static void applyOptions(String agentArgument) {
+
+		if (agentArgument == null) {
+			return;
+		}
+		for (String option : agentArgument.split(",")) {
+			String[] spl = option.split("=", 2);
+			if (spl.length > 1 && spl[0].trim().startsWith(OPTION_PREFIX)
+					&& System.getProperty(spl[0].trim()) == null) {
+				System.setProperty(spl[0].trim(), spl[1].trim());
+			}
+		}
+	}
+
+	private static Map<String, LogLevel> buildInitialState(String agentArgument) {
+	
+		if(agentArgument == null) {
+			return Collections.emptyMap();
+		}
+		Map<String, LogLevel> initialState = new HashMap<String, LogLevel>();
+		String[] loggers = agentArgument.split(",");
+		for (String logger : loggers) {
+			String[] spl = logger.split("=");
+			if(spl.length > 1 && !spl[0].trim().startsWith(OPTION_PREFIX)) {
+				String name = spl[0];
+				String level = spl[1];
+				try {
+					initialState.put(name, LogLevel.valueOf(level.toUpperCase()));
+				} catch (Exception e) {	
+					// it could be anything, just ignore	
+				}
+			}
+		}
+		return initialState;
+	}
+	
+	private static Map<String, List<J4LogPlugin>> buildObservedClassesMap() {
+
+		Map<String, List<J4LogPlugin>> map = new HashMap<String, List<J4LogPlugin>>();
+		for (J4LogPlugin plugin : PluginManager.getPlugins()) {
+
+			for (String className : plugin.getObservedClasses()) {
+				if (className == null || "".equals(className.trim())) {
+					continue;
+				}
+				String jvmName = Descriptor.toJvmName(className);
+				if (map.containsKey(jvmName)) {
+					map.get(jvmName).add(plugin);
+				} else {
+					List<J4LogPlugin> plugins = new ArrayList<J4LogPlugin>();
+					plugins.add(plugin);
+					map.put(jvmName, plugins);
+				}
+			}
+		}
+
+		return map;
+	}
+
+	/**
+	 * Every class gets its own short lived {@link ClassPool}, able to see the
+	 * classes of its loader and dropped right after, so no Javassist state
+	 * stays on the heap. The latest results are kept by a digest of the
+	 * original classfile, so the same logging library bundled by many
+	 * applications is transformed once, the least recently used going first.
+	 * The plug-ins get notified of every load anyway, through
+	 * {@link J4LogPlugin#onClassLoading(String, ClassLoader, Class)}.
+	 */
+	static class Transformer implements ClassFileTransformer {
+
+		private static final String DIGEST_ALGORITHM = "SHA-256";
+		private static final byte[] NOT_TRANSFORMED = new byte[0];
+		// A few versions of each observed class
+		private static final int MAX_CACHED = 64;
+
+		private Map<String, List<J4LogPlugin>> observedClassesMap;
+		private final Map<String, byte[]> transformed = new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Entry<String, byte[]> eldest) {
+				return size() > MAX_CACHED;
+			}
+		};
+
+		public Transformer(Map<String, List<J4LogPlugin>> observedClassesMap) {
+			super();
+			this.observedClassesMap = observedClassesMap;
+		}
+
+		@Override
+		public byte[] transform(ClassLoader loader, String className,
+				Class<?> classBeingRedefined,
+				ProtectionDomain protectionDomain, byte[] classfileBuffer)
+				throws IllegalClassFormatException {
+
+			List<J4LogPlugin> plugins = observedClassesMap.get(className);
+			if (plugins == null) {
+				return null;
+			}
+
+			String javaName = Descriptor.toJavaName(className);
+			for (J4LogPlugin plugin : plugins) {
+				plugin.ensureActive();
+				plugin.onClassLoading(javaName, loader, classBeingRedefined);
+			}
+
+			// Classes already loaded get a different transformation
+			String key = digest((classBeingRedefined == null ? "" : "retransform:")
+					+ className, classfileBuffer);
+			byte[] cached = null;
+			if (key != null) {
+				synchronized (transformed) {
+					cached = transformed.get(key);
+				}
+			}
+			if (cached != null) {
+				return cached == NOT_TRANSFORMED ? null : cached;
+			}
+
+			ClassPool pool = new ClassPool(true);
+			if (loader != null) {
+				pool.appendClassPath(new LoaderClassPath(loader));
+			}
+			byte[] tempBuffer;
+			boolean transformedAtLeastOnce = false;
+			for (J4LogPlugin plugin : plugins) {
+				tempBuffer = plugin.onClassLoaded(
+						javaName, loader,
+						classBeingRedefined, protectionDomain, pool,
+						classfileBuffer);
+				if (tempBuffer != null) {
+					transformedAtLeastOnce = true;
+					classfileBuffer = tempBuffer;
+				}
+			}
+
+			if (key != null) {
+				synchronized (transformed) {
+					transformed.put(key,
+							transformedAtLeastOnce ? classfileBuffer : NOT_TRANSFORMED);
+				}
+			}
+			return transformedAtLeastOnce ? classfileBuffer : null;
+		}
+
+		private static String digest(String className, byte[] classfileBuffer) {
+
+			try {
+				byte[] digest = MessageDigest.getInstance(DIGEST_ALGORITHM)
+						.digest(classfileBuffer);
+				return className + ":" + new BigInteger(1, digest).toString(16);
+			} catch (NoSuchAlgorithmException e) {
+				return null;
+			}
+		}
+
+	}
+}
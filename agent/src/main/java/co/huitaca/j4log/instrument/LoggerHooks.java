@@ -0,0 +1,176 @@
+/*
+ * Copyright 2016 Camilo Bermúdez
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.huitaca.j4log.instrument;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javassist.CannotCompileException;
+import javassist.CtClass;
+import javassist.CtField;
+import javassist.CtMethod;
+import javassist.CtNewMethod;
+import co.huitaca.j4log.J4LogPlugin;
+
+/**
+ * *** ONLY USED IN AGENT MODE ***
+ *
+ * Entry point for the code injected into the logging libraries classes.
+ *
+ * Those classes may be loaded by class loaders that can't see j4log classes
+ * (e.g. <code>java.util.logging.Logger</code> lives in the bootstrap class
+ * loader), so the injected code never links against this class, it looks it up
+ * once through the system class loader, where the agent lives, and then calls
+ * it reflectively.
+ *
+ * Classes retransformed after the agent gets attached to a running JVM can't
+ * gain new members, so there the lookup is inlined into each hook instead.
+ */
+public class LoggerHooks {
+
+    public static final String LOGGER_CREATED = "loggerCreated";
+    public static final String APPENDER_REQUESTED = "appenderRequested";
+
+    private static final String REPORT_METHOD_NAME = "_j4logReport";
+    private static final String REPORT_HOOK_FIELD_NAME = "_j4logReportHook";
+    private static final String REPORT_HOOK_FIELD_DEF = "private static volatile java.lang.reflect.Method "
+	    + REPORT_HOOK_FIELD_NAME + ";";
+    private static final String REPORT_HOOK_LOOKUP_SRC = "java.lang.Class.forName(\"" + LoggerHooks.class.getName()
+	    + "\", true, java.lang.ClassLoader.getSystemClassLoader()).getMethod(\"report\", new java.lang.Class[] {"
+	    + "java.lang.String.class, java.lang.String.class, java.lang.Object.class})";
+    private static final String REPORT_METHOD_SRC =
+	    "private static java.lang.Object " + REPORT_METHOD_NAME + "(java.lang.String event, java.lang.String framework, java.lang.Object logger) {"
+		    + "try {"
+		    	+ "java.lang.reflect.Method hook = " + REPORT_HOOK_FIELD_NAME + ";"
+		    	+ "if (hook == null) {"
+		    	    + "hook = " + REPORT_HOOK_LOOKUP_SRC + ";"
+		    	    + REPORT_HOOK_FIELD_NAME + " = hook;"
+		    	+ "}"
+		    	+ "return hook.invoke(null, new java.lang.Object[] { event, framework, logger });"
+		    + "} catch (java.lang.Throwable t) {"
+		    	+ "return null;"
+		    + "}"
+	    + "}";
+
+    private static final Map<String, J4LogPlugin> LISTENERS = new ConcurrentHashMap<>();
+
+    /**
+     * Subscribes a plug-in to the events reported by the classes of a logging
+     * framework.
+     *
+     * @param framework
+     * @param plugin
+     */
+    public static void listen(String framework, J4LogPlugin plugin) {
+	LISTENERS.put(framework, plugin);
+    }
+
+    /**
+     * Called by the injected code, never directly.
+     *
+     * @param event
+     * @param framework
+     * @param logger
+     * @return whatever the plug-in hands back to the injected code,
+     *         <code>null</code> most of the time.
+     */
+    public static Object report(String event, String framework, Object logger) {
+
+	J4LogPlugin plugin = LISTENERS.get(framework);
+	if (plugin == null) {
+	    return null;
+	}
+
+	if (LOGGER_CREATED.equals(event)) {
+	    return plugin.onLoggerCreated(logger);
+	}
+	if (APPENDER_REQUESTED.equals(event)) {
+	    return plugin.onAppenderRequested(logger);
+	}
+
+	return null;
+    }
+
+    /**
+     * Adds to the class being transformed the static method used by the
+     * injected code to report events.
+     *
+     * @param cl
+     * @throws CannotCompileException
+     */
+    public static void addReportMethod(CtClass cl) throws CannotCompileException {
+
+	cl.addField(CtField.make(REPORT_HOOK_FIELD_DEF, cl));
+	CtMethod method = CtNewMethod.make(REPORT_METHOD_SRC, cl);
+	cl.addMethod(method);
+    }
+
+    /**
+     * Returns the source of a statement reporting an event about
+     * <code>this</code> logger, to be injected into a class previously
+     * prepared with {@link #addReportMethod(CtClass)}.
+     *
+     * @param event
+     * @param framework
+     * @return
+     */
+    public static String reportSrc(String event, String framework) {
+	return reportSrc(event, framework, "this");
+    }
+
+    /**
+     * Same as {@link #reportSrc(String, String)} for the logger the given
+     * expression evaluates to.
+     *
+     * @param event
+     * @param framework
+     * @param loggerExpr
+     * @return
+     */
+    public static String reportSrc(String event, String framework, String loggerExpr) {
+	return reportSrc(event, framework, loggerExpr, null, false);
+    }
+
+    /**
+     * Same as {@link #reportSrc(String, String, String)}, storing whatever the
+     * plug-in returns in a <code>java.lang.Object</code> variable declared by
+     * the caller, if any.
+     *
+     * @param event
+     * @param framework
+     * @param loggerExpr
+     * @param resultVar
+     * @param inline
+     *            whether to look the hook up in place, for classes that
+     *            weren't prepared with {@link #addReportMethod(CtClass)}.
+     * @return
+     */
+    public static String reportSrc(String event, String framework, String loggerExpr, String resultVar,
+	    boolean inline) {
+
+	String args = "\"" + event + "\", \"" + framework + "\", " + loggerExpr;
+	String assignment = resultVar == null ? "" : resultVar + " = ";
+	if (!inline) {
+	    return assignment + REPORT_METHOD_NAME + "(" + args + ");";
+	}
+
+	return "try {"
+		+ assignment + REPORT_HOOK_LOOKUP_SRC + ".invoke(null, new java.lang.Object[] { " + args + " });"
+		+ "} catch (java.lang.Throwable t) {"
+		+ "}";
+    }
+
+}
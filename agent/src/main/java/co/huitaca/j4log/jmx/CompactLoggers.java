@@ -0,0 +1,131 @@
+/*
+ * Copyright 2016 Camilo Bermúdez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.huitaca.j4log.jmx;
+
+import java.beans.ConstructorProperties;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import co.huitaca.j4log.LogLevel;
+import co.huitaca.j4log.Sampling;
+
+/**
+ * Columnar, front coded list of loggers: names are sorted and each one only
+ * carries the part it doesn't share with the previous one, levels are
+ * {@link LogLevel} ordinals.
+ * 
+ * E.g. <code>com.acme.dao=DEBUG, com.acme.web=INFO</code> is sent as
+ * <code>prefixLengths={0, 9}, suffixes={"com.acme.dao", "web"}, levels={2, 3}</code>
+ * .
+ * 
+ * Sampling rates, as returned by {@link Sampling#getRate()}, only get a
+ * column when some logger is sampled, e.g. <code>rates={0, -1000}</code> for
+ * <code>com.acme.web=INFO@10%</code>. It's empty otherwise.
+ */
+public class CompactLoggers {
+
+    private final int[] prefixLengths;
+    private final String[] suffixes;
+    private final byte[] levels;
+    private final int[] rates;
+
+    @ConstructorProperties({ "prefixLengths", "suffixes", "levels", "rates" })
+    public CompactLoggers(int[] prefixLengths, String[] suffixes, byte[] levels, int[] rates) {
+	this.prefixLengths = prefixLengths;
+	this.suffixes = suffixes;
+	this.levels = levels;
+	this.rates = rates;
+    }
+
+    /**
+     * @param loggers
+     *            logger names, in their natural order, mapped to
+     *            {@link LogLevel} names, optionally sampled.
+     * @return
+     */
+    public static CompactLoggers encode(Map<String, String> loggers) {
+
+	int[] prefixLengths = new int[loggers.size()];
+	String[] suffixes = new String[loggers.size()];
+	byte[] levels = new byte[loggers.size()];
+	int[] rates = null;
+	String previous = "";
+	int i = 0;
+	for (Entry<String, String> entry : loggers.entrySet()) {
+	    String name = entry.getKey();
+	    int shared = 0;
+	    int max = Math.min(previous.length(), name.length());
+	    while (shared < max && previous.charAt(shared) == name.charAt(shared)) {
+		shared++;
+	    }
+	    prefixLengths[i] = shared;
+	    suffixes[i] = name.substring(shared);
+	    Sampling sampling;
+	    try {
+		sampling = Sampling.parse(entry.getValue());
+	    } catch (IllegalArgumentException e) {
+		sampling = Sampling.parse(LogLevel.INDETERMINATE.name());
+	    }
+	    levels[i] = (byte) sampling.getLevel().ordinal();
+	    if (sampling.isSampled()) {
+		rates = rates == null ? new int[loggers.size()] : rates;
+		rates[i] = sampling.getRate();
+	    }
+	    previous = name;
+	    i++;
+	}
+
+	return new CompactLoggers(prefixLengths, suffixes, levels, rates == null ? new int[0] : rates);
+    }
+
+    /**
+     * Expands the loggers back to the format returned by {@link J4LogMBean}.
+     * 
+     * @return
+     */
+    public Map<String, String> decode() {
+
+	LogLevel[] logLevels = LogLevel.values();
+	Map<String, String> loggers = new TreeMap<>();
+	String previous = "";
+	for (int i = 0; i < suffixes.length; i++) {
+	    String name = previous.substring(0, prefixLengths[i]) + suffixes[i];
+	    String level = logLevels[levels[i]].name();
+	    loggers.put(name, rates.length == 0 ? level : Sampling.format(level, rates[i]));
+	    previous = name;
+	}
+
+	return loggers;
+    }
+
+    public int[] getPrefixLengths() {
+	return prefixLengths;
+    }
+
+    public String[] getSuffixes() {
+	return suffixes;
+    }
+
+    public byte[] getLevels() {
+	return levels;
+    }
+
+    public int[] getRates() {
+	return rates;
+    }
+
+}
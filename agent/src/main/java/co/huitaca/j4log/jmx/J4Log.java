@@ -0,0 +1,464 @@
+/*
+ * Copyright 2016 Camilo Bermúdez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.huitaca.j4log.jmx;
+
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import co.huitaca.j4log.J4LogPlugin;
+import co.huitaca.j4log.LevelSnapshot;
+import co.huitaca.j4log.LogLevel;
+import co.huitaca.j4log.LoggerRegistry;
+import co.huitaca.j4log.async.AsyncWriter;
+import co.huitaca.j4log.governor.VolumeGovernor;
+import co.huitaca.j4log.plugins.PluginManager;
+import co.huitaca.j4log.timer.HashedWheelTimer;
+
+public class J4Log implements J4LogMBean {
+
+    public static final String OBJECT_NAME = "co.huitaca:type=J4Log";
+
+    private static J4Log INSTANCE = new J4Log();
+
+    private final LoggerRegistry registry = LoggerRegistry.getInstance();
+
+    /*
+     * Overrides are reverted with the precision of a second, thousands of them
+     * cost a single thread and no more than a bucket scan per tick. The
+     * governor ticks on the same thread.
+     */
+    private final HashedWheelTimer timer = new HashedWheelTimer("j4log-levels", 1, TimeUnit.SECONDS, 512);
+    private final ConcurrentMap<String, LevelOverride> overrides = new ConcurrentHashMap<>();
+    private final VolumeGovernor governor = new VolumeGovernor(registry, timer);
+
+    // Levels set through setLevel and setLevels only, temporary ones aren't
+    // recorded
+    private final LevelSnapshot snapshot = LevelSnapshot.getInstance();
+
+    /*
+     * Event counts taken when rates were asked for, rates are computed against
+     * the latest one at least RATE_WINDOW old. Counting starts with the JVM.
+     */
+    private static final long RATE_WINDOW = TimeUnit.SECONDS.toMillis(10);
+    private static final long RATE_SNAPSHOT_SPACING = TimeUnit.SECONDS.toMillis(1);
+    private final Deque<EventCountSnapshot> eventCountSnapshots = new ArrayDeque<>(Collections.singleton(
+	    new EventCountSnapshot(ManagementFactory.getRuntimeMXBean().getStartTime(),
+		    Collections.<String, long[]> emptyMap())));
+
+    private J4Log() {
+
+	long budget = Long.getLong(VolumeGovernor.BUDGET_PROPERTY, 0);
+	if (budget > 0) {
+	    governor.setBudget(budget);
+	}
+    }
+
+    public static J4Log getInstance() {
+	return INSTANCE;
+    }
+
+    @Override
+    public int countLoggers() {
+
+	return registry.count(null);
+    }
+
+    @Override
+    public Map<String, String> getLoggers() {
+
+	return registry.getSubtree(null, null);
+    }
+
+    @Override
+    public Map<String, String> getLoggers(int offset, int size) {
+
+	return registry.getPage(offset, size);
+    }
+
+    @Override
+    public int countLoggersLike(String like) {
+
+	return getLoggersLike(like).size();
+    }
+
+    @Override
+    public Map<String, String> getLoggersLike(String like) {
+
+	return registry.getLoggersLike(null, like);
+    }
+
+    @Override
+    public Map<String, String> getLoggersLike(String like, int offset, int size) {
+
+	return registry.getPageLike(like, offset, size);
+    }
+
+    @Override
+    public Map<String, String> getLoggersAfter(String after, int size) {
+
+	return registry.getPageAfter(after, null, size);
+    }
+
+    @Override
+    public Map<String, String> getLoggersLikeAfter(String like, String after, int size) {
+
+	return registry.getPageAfter(after, like, size);
+    }
+
+    @Override
+    public long openLoggersSnapshot() {
+
+	return registry.openSnapshot();
+    }
+
+    @Override
+    public Map<String, String> getLoggers(long snapshot, int offset, int size) {
+
+	return registry.getPage(snapshot, offset, size);
+    }
+
+    @Override
+    public Map<String, String> getLoggersAfter(long snapshot, String after, int size) {
+
+	return registry.getPageAfter(snapshot, after, null, size);
+    }
+
+    @Override
+    public Map<String, String> getLoggersLikeAfter(long snapshot, String like, String after, int size) {
+
+	return registry.getPageAfter(snapshot, after, like, size);
+    }
+
+    @Override
+    public void setLevel(String logger, String level) {
+
+	setLevel(logger, level, false);
+    }
+
+    @Override
+    public void setLevel(String logger, String level, boolean force) {
+
+	Map<String, String> levels = Collections.singletonMap(logger, level);
+	setLevels(levels, force);
+	snapshot.record(levels);
+    }
+
+    @Override
+    public String getLevel(String logger) {
+
+	return registry.getLevel(null, logger);
+    }
+
+    @Override
+    public Map<String, String> setLevels(Map<String, String> levels) {
+
+	Map<String, String> changed = setLevels(levels, false);
+	snapshot.record(levels);
+	return changed;
+    }
+
+    private Map<String, String> setLevels(Map<String, String> levels, boolean force) {
+	return setLevels(levels, force, new HashSet<String>());
+    }
+
+    /*
+     * A logger counts as inherited only if no plug-in changed it from a level
+     * of its own.
+     */
+    private Map<String, String> setLevels(Map<String, String> levels, boolean force, Set<String> inherited) {
+
+	Map<String, String> changed = new TreeMap<>();
+	Set<String> owned = new HashSet<>();
+	for (J4LogPlugin plugin : PluginManager.getPlugins()) {
+
+	    Set<String> pluginInherited = new HashSet<>();
+	    for (Entry<String, String> loggerEntry : plugin.setLevels(levels, force, pluginInherited).entrySet()) {
+
+		String name = loggerEntry.getKey();
+		String previous = loggerEntry.getValue();
+		if (changed.containsKey(name) && !changed.get(name).equals(previous)) {
+		    changed.put(name, LogLevel.INDETERMINATE.name());
+		} else if (!changed.containsKey(name)) {
+		    changed.put(name, previous);
+		}
+		if (!pluginInherited.contains(name)) {
+		    owned.add(name);
+		}
+	    }
+	    inherited.addAll(pluginInherited);
+	}
+	inherited.removeAll(owned);
+
+	return changed;
+    }
+
+    @Override
+    public synchronized Map<String, String> setLevelFor(final String logger, String level, long durationSeconds) {
+
+	Set<String> inherited = new HashSet<>();
+	Map<String, String> changed = setLevels(Collections.singletonMap(logger, level), false, inherited);
+
+	// Overriding an override extends it, the levels to restore are still
+	// the ones it found
+	Map<String, String> previousLevels = new TreeMap<>(changed);
+	LevelOverride replaced = overrides.remove(logger);
+	if (replaced != null) {
+	    replaced.timeout.cancel();
+	    previousLevels.putAll(replaced.previousLevels);
+	    inherited.removeAll(replaced.previousLevels.keySet());
+	    inherited.addAll(replaced.inherited);
+	}
+
+	final LevelOverride override = new LevelOverride(level, previousLevels, inherited,
+		System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(durationSeconds));
+	overrides.put(logger, override);
+	override.timeout = timer.schedule(new Runnable() {
+
+	    @Override
+	    public void run() {
+		revert(logger, override);
+	    }
+	}, durationSeconds, TimeUnit.SECONDS);
+
+	return changed;
+    }
+
+    @Override
+    public Map<String, String> getLevelOverrides() {
+
+	Map<String, String> pending = new TreeMap<>();
+	long now = System.currentTimeMillis();
+	for (Entry<String, LevelOverride> overrideEntry : overrides.entrySet()) {
+	    LevelOverride override = overrideEntry.getValue();
+	    pending.put(overrideEntry.getKey(), override.level + " for "
+		    + TimeUnit.MILLISECONDS.toSeconds(Math.max(override.expiration - now, 0)) + "s, then "
+		    + override.previousLevels);
+	}
+	return pending;
+    }
+
+    private synchronized void revert(String logger, LevelOverride override) {
+
+	// Replaced meanwhile
+	if (!overrides.remove(logger, override)) {
+	    return;
+	}
+	// Loggers that used to inherit their level get to inherit it again,
+	// pinning the level they had would detach them from their ancestors
+	Map<String, String> levels = new TreeMap<>();
+	for (Entry<String, String> levelEntry : override.previousLevels.entrySet()) {
+	    if (!LogLevel.INDETERMINATE.name().equals(levelEntry.getValue())
+		    && !override.inherited.contains(levelEntry.getKey())) {
+		levels.put(levelEntry.getKey(), levelEntry.getValue());
+	    }
+	}
+	setLevels(levels, false);
+	for (J4LogPlugin plugin : PluginManager.getPlugins()) {
+	    plugin.inheritLevels(override.inherited);
+	}
+    }
+
+    @Override
+    public Map<String, String> getLevels(String[] loggers) {
+	return registry.getLevels(null, loggers);
+    }
+
+    @Override
+    public Map<String, String> getEventRates() {
+
+	Map<String, String> rates = new TreeMap<>();
+	for (Entry<String, double[]> rateEntry : getRates().entrySet()) {
+	    rates.put(rateEntry.getKey(), formatRates(rateEntry.getValue()));
+	}
+	return rates;
+    }
+
+    @Override
+    public Map<String, String> getNoisiestLoggers(int count) {
+
+	if (count <= 0) {
+	    return Collections.emptyMap();
+	}
+
+	// Only the noisiest so far are kept, the quietest of them on top
+	Map<String, double[]> rates = getRates();
+	PriorityQueue<Entry<String, Double>> noisiest = new PriorityQueue<>(Math.max(Math.min(count, rates.size()),
+		1), new Comparator<Entry<String, Double>>() {
+
+		    @Override
+		    public int compare(Entry<String, Double> a, Entry<String, Double> b) {
+			return a.getValue().compareTo(b.getValue());
+		    }
+		});
+	for (Entry<String, double[]> rateEntry : rates.entrySet()) {
+	    double total = 0;
+	    for (double rate : rateEntry.getValue()) {
+		total += rate;
+	    }
+	    if (noisiest.size() < count) {
+		noisiest.add(new SimpleImmutableEntry<>(rateEntry.getKey(), total));
+	    } else if (total > noisiest.peek().getValue()) {
+		noisiest.poll();
+		noisiest.add(new SimpleImmutableEntry<>(rateEntry.getKey(), total));
+	    }
+	}
+
+	LinkedList<Entry<String, Double>> sorted = new LinkedList<>();
+	while (!noisiest.isEmpty()) {
+	    sorted.addFirst(noisiest.poll());
+	}
+	Map<String, String> result = new LinkedHashMap<>();
+	for (Entry<String, Double> loggerEntry : sorted) {
+	    result.put(loggerEntry.getKey(), formatRate(loggerEntry.getValue()) + " ("
+		    + formatRates(rates.get(loggerEntry.getKey())) + ")");
+	}
+	return result;
+    }
+
+    /*
+     * Events per second of each logger and level, since the latest snapshot
+     * at least RATE_WINDOW old. Loggers without events are left out.
+     */
+    private synchronized Map<String, double[]> getRates() {
+
+	long now = System.currentTimeMillis();
+	Map<String, long[]> counts = registry.getEventCounts();
+	if (now - eventCountSnapshots.getLast().time >= RATE_SNAPSHOT_SPACING) {
+	    eventCountSnapshots.addLast(new EventCountSnapshot(now, counts));
+	}
+	while (eventCountSnapshots.size() > 1 && now - getSecond(eventCountSnapshots).time >= RATE_WINDOW) {
+	    eventCountSnapshots.removeFirst();
+	}
+
+	EventCountSnapshot base = eventCountSnapshots.getFirst();
+	double seconds = Math.max(now - base.time, 1) / 1000d;
+	Map<String, double[]> rates = new TreeMap<>();
+	for (Entry<String, long[]> countEntry : counts.entrySet()) {
+	    long[] current = countEntry.getValue();
+	    long[] previous = base.counts.get(countEntry.getKey());
+	    double[] loggerRates = null;
+	    for (int i = 0; i < current.length; i++) {
+		// Counts of collected instances are gone, never negative
+		long events = current[i] - (previous == null ? 0 : previous[i]);
+		if (events > 0) {
+		    loggerRates = loggerRates == null ? new double[current.length] : loggerRates;
+		    loggerRates[i] = events / seconds;
+		}
+	    }
+	    if (loggerRates != null) {
+		rates.put(countEntry.getKey(), loggerRates);
+	    }
+	}
+	return rates;
+    }
+
+    private static EventCountSnapshot getSecond(Deque<EventCountSnapshot> snapshots) {
+
+	Iterator<EventCountSnapshot> iterator = snapshots.iterator();
+	iterator.next();
+	return iterator.next();
+    }
+
+    private static String formatRates(double[] rates) {
+
+	StringBuilder formatted = new StringBuilder();
+	for (int i = 0; i < rates.length; i++) {
+	    if (rates[i] > 0) {
+		formatted.append(formatted.length() == 0 ? "" : ", ").append(LogLevel.values()[i]).append(' ')
+			.append(formatRate(rates[i]));
+	    }
+	}
+	return formatted.toString();
+    }
+
+    private static String formatRate(double rate) {
+
+	return BigDecimal.valueOf(rate).setScale(1, RoundingMode.HALF_UP).stripTrailingZeros().toPlainString()
+		+ "/s";
+    }
+
+    @Override
+    public long getEventBudget() {
+	return governor.getBudget();
+    }
+
+    @Override
+    public void setEventBudget(long eventsPerSecond) {
+	governor.setBudget(eventsPerSecond);
+    }
+
+    @Override
+    public Map<String, String> getThrottledLoggers() {
+	return governor.getThrottled();
+    }
+
+    @Override
+    public String[] getGovernorActions() {
+	return governor.getActions();
+    }
+
+    @Override
+    public long getDroppedEvents() {
+	return AsyncWriter.getTotalDropped();
+    }
+
+    private static class LevelOverride {
+
+	private final String level;
+	private final Map<String, String> previousLevels;
+	private final Set<String> inherited;
+	private final long expiration;
+	private volatile HashedWheelTimer.Timeout timeout;
+
+	private LevelOverride(String level, Map<String, String> previousLevels, Set<String> inherited,
+		long expiration) {
+	    this.level = level;
+	    this.previousLevels = previousLevels;
+	    this.inherited = inherited;
+	    this.expiration = expiration;
+	}
+    }
+
+    private static class EventCountSnapshot {
+
+	private final long time;
+	private final Map<String, long[]> counts;
+
+	private EventCountSnapshot(long time, Map<String, long[]> counts) {
+	    this.time = time;
+	    this.counts = counts;
+	}
+    }
+
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2016 Camilo Bermúdez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.huitaca.j4log.jmx;
+
+import co.huitaca.j4log.LoggerRegistry;
+
+public class J4LogCompact implements J4LogCompactMXBean {
+
+    public static final String OBJECT_NAME = "co.huitaca:type=J4Log,format=compact";
+
+    private static J4LogCompact INSTANCE = new J4LogCompact();
+
+    private final LoggerRegistry registry = LoggerRegistry.getInstance();
+
+    public static J4LogCompact getInstance() {
+	return INSTANCE;
+    }
+
+    @Override
+    public CompactLoggers getLoggers() {
+
+	return CompactLoggers.encode(registry.getSubtree(null, null));
+    }
+
+    @Override
+    public CompactLoggers getLoggersLike(String like) {
+
+	return CompactLoggers.encode(registry.getLoggersLike(null, like));
+    }
+
+    @Override
+    public CompactLoggers getSubtree(String root) {
+
+	return CompactLoggers.encode(registry.getSubtree(null, root));
+    }
+
+    @Override
+    public CompactLoggers getLoggersAfter(String after, int size) {
+
+	return CompactLoggers.encode(registry.getPageAfter(after, null, size));
+    }
+
+    @Override
+    public CompactLoggers getLoggersLikeAfter(String like, String after, int size) {
+
+	return CompactLoggers.encode(registry.getPageAfter(after, like, size));
+    }
+
+    @Override
+    public long openLoggersSnapshot() {
+
+	return registry.openSnapshot();
+    }
+
+    @Override
+    public CompactLoggers getLoggersAfter(long snapshot, String after, int size) {
+
+	return CompactLoggers.encode(registry.getPageAfter(snapshot, after, null, size));
+    }
+
+    @Override
+    public CompactLoggers getLoggersLikeAfter(long snapshot, String like, String after, int size) {
+
+	return CompactLoggers.encode(registry.getPageAfter(snapshot, after, like, size));
+    }
+
+}
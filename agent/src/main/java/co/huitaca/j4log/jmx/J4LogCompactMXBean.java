@@ -0,0 +1,44 @@
+/*
+ * Copyright 2016 Camilo Bermúdez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.huitaca.j4log.jmx;
+
+/**
+ * Same queries as {@link J4LogMBean} returning {@link CompactLoggers}, much
+ * lighter than a map of strings for large hierarchies.
+ */
+public interface J4LogCompactMXBean {
+
+    public CompactLoggers getLoggers();
+
+    public CompactLoggers getLoggersLike(String like);
+
+    public CompactLoggers getSubtree(String root);
+
+    public CompactLoggers getLoggersAfter(String after, int size);
+
+    public CompactLoggers getLoggersLikeAfter(String like, String after, int size);
+
+    /**
+     * @return the version of a snapshot of the logger names, see
+     *         {@link J4LogMBean#openLoggersSnapshot()}.
+     */
+    public long openLoggersSnapshot();
+
+    public CompactLoggers getLoggersAfter(long snapshot, String after, int size);
+
+    public CompactLoggers getLoggersLikeAfter(long snapshot, String like, String after, int size);
+
+}
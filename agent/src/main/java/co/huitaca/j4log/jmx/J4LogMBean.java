@@ -0,0 +1,164 @@
+/*
+ * Copyright 2016 Camilo Bermúdez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.huitaca.j4log.jmx;
+
+import java.util.Map;
+
+public interface J4LogMBean {
+
+    public int countLoggers();
+
+    public Map<String, String> getLoggers();
+
+    public Map<String, String> getLoggers(int offset, int size);
+
+    public int countLoggersLike(String like);
+
+    public Map<String, String> getLoggersLike(String like);
+
+    public Map<String, String> getLoggersLike(String like, int offset, int page);
+
+    /**
+     * Keyset pagination over all the loggers.
+     * 
+     * @param after
+     *            the last logger name of the previous page, <code>null</code>
+     *            for the first page.
+     * @param size
+     * @return up to <code>size</code> loggers following <code>after</code>.
+     */
+    public Map<String, String> getLoggersAfter(String after, int size);
+
+    public Map<String, String> getLoggersLikeAfter(String like, String after, int size);
+
+    /**
+     * Takes a snapshot of the logger names to page through, so that the pages
+     * of a client stay consistent whatever other clients do. The paging
+     * operations without a snapshot share the latest one.
+     * 
+     * @return the snapshot version, to be given back with each page.
+     */
+    public long openLoggersSnapshot();
+
+    /**
+     * @param snapshot
+     *            as returned by {@link #openLoggersSnapshot()}.
+     * @param offset
+     * @param size
+     * @return
+     * @throws IllegalArgumentException
+     *             if the snapshot expired, the client should open another.
+     */
+    public Map<String, String> getLoggers(long snapshot, int offset, int size);
+
+    public Map<String, String> getLoggersAfter(long snapshot, String after, int size);
+
+    public Map<String, String> getLoggersLikeAfter(long snapshot, String like, String after, int size);
+
+    /**
+     * Sets the level of the subtree rooted at the logger. Where the logging
+     * library propagates levels, only the root gets it and the descendants
+     * lose their own so they inherit it.
+     * 
+     * @param logger
+     * @param level
+     */
+    public void setLevel(String logger, String level);
+
+    /**
+     * Same as {@link #setLevel(String, String)}.
+     * 
+     * @param logger
+     * @param level
+     * @param force
+     *            whether to set the level on every logger of the subtree.
+     */
+    public void setLevel(String logger, String level, boolean force);
+
+    public String getLevel(String logger);
+
+    /**
+     * Sets several levels at once, each one on the subtree rooted at its
+     * logger.
+     * 
+     * @param levels
+     *            loggers mapped to the levels to set on them.
+     * @return the loggers whose level changed, mapped to the level they had
+     *         before.
+     */
+    public Map<String, String> setLevels(Map<String, String> levels);
+
+    public Map<String, String> getLevels(String[] loggers);
+
+    /**
+     * Sets the level of the subtree rooted at the logger for a while, then
+     * sets back the levels the loggers had. Overriding the same logger again
+     * extends the override.
+     * 
+     * @param logger
+     * @param level
+     * @param durationSeconds
+     * @return the loggers whose level changed, mapped to the level they had
+     *         before.
+     */
+    public Map<String, String> setLevelFor(String logger, String level, long durationSeconds);
+
+    /**
+     * @return the loggers whose level is overridden, mapped to the level set,
+     *         the time left and the levels to set back.
+     */
+    public Map<String, String> getLevelOverrides();
+
+    /**
+     * @return the loggers that emitted events lately, mapped to their events
+     *         per second by level, e.g. <code>DEBUG 120.5/s, INFO 3/s</code>.
+     */
+    public Map<String, String> getEventRates();
+
+    /**
+     * @param count
+     * @return the loggers emitting the most events lately, the noisiest first,
+     *         mapped to their events per second.
+     */
+    public Map<String, String> getNoisiestLoggers(int count);
+
+    /**
+     * @return the events per second the loggers may emit before the noisiest
+     *         get their level raised, 0 if unlimited.
+     */
+    public long getEventBudget();
+
+    public void setEventBudget(long eventsPerSecond);
+
+    /**
+     * @return the loggers whose level got raised to keep the events under
+     *         budget, mapped to the level set and the levels to restore.
+     */
+    public Map<String, String> getThrottledLoggers();
+
+    /**
+     * @return the latest levels raised and restored to keep the events under
+     *         budget, the oldest first.
+     */
+    public String[] getGovernorActions();
+
+    /**
+     * @return the events discarded by the asynchronous appenders because
+     *         their buffers were full.
+     */
+    public long getDroppedEvents();
+
+}
@@ -13,26 +13,16 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-package co.huitaca.j4log.jmx;
+package co.huitaca.j4log.plugins;
 
-import java.util.Map;
+import java.util.logging.Logger;
 
-public interface J4LogMBean {
+public class ApacheJULIPlugin extends JULPlugin {
 
-    public int countLoggers();
+    @Override
+    protected String getLoggerLevel(Object logger) {
 
-    public Map<String, String> getLoggers();
-
-    public Map<String, String> getLoggers(int offset, int size);
-
-    public int countLoggersLike(String like);
-
-    public Map<String, String> getLoggersLike(String like);
-
-    public Map<String, String> getLoggersLike(String like, int offset, int page);
-
-    public void setLevel(String logger, String level);
-
-    public String getLevel(String logger);
+	return getEffectiveSampledLevel((Logger) logger);
+    }
 
 }
@@ -0,0 +1,648 @@
+/*
+ * Copyright 2016 Camilo Bermúdez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.huitaca.j4log.plugins;
+
+import java.io.ByteArrayInputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogManager;
+import java.util.logging.Logger;
+import java.util.logging.SimpleFormatter;
+import java.util.logging.StreamHandler;
+
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtConstructor;
+import javassist.CtField;
+import javassist.CtMethod;
+import javassist.CtNewMethod;
+import co.huitaca.j4log.EventCounters;
+import co.huitaca.j4log.J4LogPlugin;
+import co.huitaca.j4log.LogLevel;
+import co.huitaca.j4log.Sampling;
+import co.huitaca.j4log.async.AsyncConsoleHandler;
+import co.huitaca.j4log.instrument.LoggerHooks;
+
+public class JULPlugin extends J4LogPlugin {
+
+    /*
+     * String.format(format, date, source, logger, level, message, thrown);
+     */
+    private static final String JUL_SIMPLE_FORMATTER_FORMAT_PROPERTY = "java.util.logging.SimpleFormatter.format";
+    private static final String JUL_SIMPLE_FORMATTER_FORMAT = "%1$tY%1$tm%1$td-%1$tH:%1$tM:%1$tS.%1$tL %4$-7s [%3$s]: %5$s %n";
+
+    private static final String FRAMEWORK = "jul";
+
+    private static final String JUL_LOGGER = "java.util.logging.Logger";
+    private static final String JUL_LOGGER_LEVEL_VALUE_FIELD = "levelValue";
+
+    private static final String JULI_CLASS_LOADER_LOG_MANAGER = "org.apache.juli.ClassLoaderLogManager";
+    private static final String JULI_CLASS_LOADER_LOGGERS_FIELD = "classLoaderLoggers";
+    private static final String JULI_LOG_INFO_LOGGERS_FIELD = "loggers";
+
+    private static final String JUL_LOGGER_CREATED_SRC;
+    private static final String JUL_LOGGER_ADD_HANDLER_METHOD_NAME;
+    private static final String JUL_LOGGER_ADD_HANDLER_METHOD_DESC;
+    private static final String JUL_LOGGER_ADD_HANDLER_AFTER_SRC;
+    private static final String JUL_LOGGER_CONSOLE_LOGGER_FLAG_NAME;
+    private static final String JUL_LOGGER_CONSOLE_LOGGER_FLAG_DEF;
+    private static final String JUL_LOGGER_CONSOLE_LOGGER_FLAG_INIT;
+    private static final String JUL_LOGGER_GET_HANDLERS_METHOD_NAME;
+    private static final String JUL_LOGGER_GET_HANDLERS_METHOD_DESC;
+    private static final String JUL_LOGGER_LOG_METHOD_NAME;
+    private static final String JUL_LOGGER_LOG_METHOD_DESC;
+    private static final String JUL_SAMPLING_RATE_METHOD_NAME;
+    private static final String JUL_SAMPLING_RATE_METHOD_SRC;
+    private static final String JUL_SAMPLING_SRC;
+    private static final String JUL_COUNT_EVENT_SRC;
+
+    protected static final Map<Level, LogLevel> JUL_LEVELS_MAP;
+    protected static final Map<LogLevel, Level> J4LOG_LEVELS_MAP;
+    protected static final Map<Integer, Level> JUL_LOG_LEVELS_INT_MAP;
+
+    protected static final int JAVA_VERSION_MAJOR = Integer
+	    .parseInt(System.getProperty("java.version").split("\\.")[1]);
+
+    private String getHandlersBeforeSrc;
+
+    static {
+
+	JUL_LEVELS_MAP = new HashMap<Level, LogLevel>();
+	JUL_LEVELS_MAP.put(Level.ALL, LogLevel.ALL);
+	JUL_LEVELS_MAP.put(Level.FINEST, LogLevel.TRACE);
+	JUL_LEVELS_MAP.put(Level.FINER, LogLevel.DEBUG);
+	JUL_LEVELS_MAP.put(Level.FINE, LogLevel.DEBUG);
+	JUL_LEVELS_MAP.put(Level.CONFIG, LogLevel.INFO);
+	JUL_LEVELS_MAP.put(Level.INFO, LogLevel.INFO);
+	JUL_LEVELS_MAP.put(Level.WARNING, LogLevel.WARN);
+	JUL_LEVELS_MAP.put(Level.SEVERE, LogLevel.ERROR);
+	JUL_LEVELS_MAP.put(Level.OFF, LogLevel.OFF);
+
+	J4LOG_LEVELS_MAP = new HashMap<LogLevel, Level>();
+	J4LOG_LEVELS_MAP.put(LogLevel.ALL, Level.ALL);
+	J4LOG_LEVELS_MAP.put(LogLevel.TRACE, Level.FINEST);
+	J4LOG_LEVELS_MAP.put(LogLevel.DEBUG, Level.FINER);
+	J4LOG_LEVELS_MAP.put(LogLevel.INFO, Level.INFO);
+	J4LOG_LEVELS_MAP.put(LogLevel.WARN, Level.WARNING);
+	J4LOG_LEVELS_MAP.put(LogLevel.ERROR, Level.SEVERE);
+	J4LOG_LEVELS_MAP.put(LogLevel.FATAL, Level.SEVERE);
+	J4LOG_LEVELS_MAP.put(LogLevel.OFF, Level.OFF);
+
+	JUL_LOG_LEVELS_INT_MAP = new HashMap<Integer, Level>();
+	JUL_LOG_LEVELS_INT_MAP.put(Level.ALL.intValue(), Level.ALL);
+	JUL_LOG_LEVELS_INT_MAP.put(Level.FINEST.intValue(), Level.FINEST);
+	JUL_LOG_LEVELS_INT_MAP.put(Level.FINER.intValue(), Level.FINER);
+	JUL_LOG_LEVELS_INT_MAP.put(Level.FINE.intValue(), Level.FINE);
+	JUL_LOG_LEVELS_INT_MAP.put(Level.CONFIG.intValue(), Level.CONFIG);
+	JUL_LOG_LEVELS_INT_MAP.put(Level.INFO.intValue(), Level.INFO);
+	JUL_LOG_LEVELS_INT_MAP.put(Level.WARNING.intValue(), Level.WARNING);
+	JUL_LOG_LEVELS_INT_MAP.put(Level.SEVERE.intValue(), Level.SEVERE);
+	JUL_LOG_LEVELS_INT_MAP.put(Level.OFF.intValue(), Level.OFF);
+
+	// The initial level comes back from the hook and is written straight
+	// into the fields, setLevel() can't run while the LogManager may still
+	// be initializing. LogManager.addLogger() computes the effective level
+	// from them later on.
+	JUL_LOGGER_CREATED_SRC =
+			"{"
+			+ "java.lang.Object initialLevel = null;"
+			+ "%s"
+			+ "if (initialLevel instanceof " + Level.class.getName() + ") {"
+				+ "levelObject = (" + Level.class.getName() + ") initialLevel;"
+				+ "levelValue = levelObject.intValue();"
+			+ "}"
+			+ "}";
+	JUL_LOGGER_ADD_HANDLER_METHOD_NAME = "addHandler";
+	JUL_LOGGER_ADD_HANDLER_METHOD_DESC = "(Ljava/util/logging/Handler;)V";
+	JUL_LOGGER_ADD_HANDLER_AFTER_SRC = "{if(!\"\".equals(name)) {removeHandler($1);setUseParentHandlers(true);}}";
+	JUL_LOGGER_CONSOLE_LOGGER_FLAG_NAME = "consoleLogger";
+	JUL_LOGGER_CONSOLE_LOGGER_FLAG_DEF = "private volatile boolean " + JUL_LOGGER_CONSOLE_LOGGER_FLAG_NAME + ";";
+	JUL_LOGGER_CONSOLE_LOGGER_FLAG_INIT = "false;";
+	JUL_LOGGER_GET_HANDLERS_METHOD_NAME = "getHandlers";
+	JUL_LOGGER_GET_HANDLERS_METHOD_DESC = "()[Ljava/util/logging/Handler;";
+
+	// Every enabled record goes through log(LogRecord), isLoggable() guards
+	// are left alone so each event gets sampled once. The rate comes from
+	// the logger the level comes from.
+	JUL_LOGGER_LOG_METHOD_NAME = "log";
+	JUL_LOGGER_LOG_METHOD_DESC = "(Ljava/util/logging/LogRecord;)V";
+	JUL_SAMPLING_RATE_METHOD_NAME = "_j4logSamplingRate";
+	JUL_SAMPLING_RATE_METHOD_SRC =
+			"private int " + JUL_SAMPLING_RATE_METHOD_NAME + "() {"
+			+ "for (" + Logger.class.getName() + " c = this; c != null; c = c.getParent()) {"
+				+ "if (c.getLevel() != null) {"
+					+ "return c." + Sampling.RATE_FIELD_NAME + ";"
+				+ "}"
+			+ "}"
+			+ "return 0;"
+			+ "}";
+	JUL_SAMPLING_SRC =
+			"{"
+			+ "if ($1 != null && $1.getLevel() != null"
+				+ " && $1.getLevel().intValue() < " + Level.class.getName() + ".INFO.intValue()) "
+				+ Sampling.skipSrc(JUL_SAMPLING_RATE_METHOD_NAME + "()", "this", "return;")
+			+ "}";
+
+	// Records let through by the sampling and the level, counted by level
+	String level = Level.class.getName();
+	JUL_COUNT_EVENT_SRC =
+			"if ($1 != null && $1.getLevel() != null && isLoggable($1.getLevel())) {"
+				+ "int level = $1.getLevel().intValue();"
+				+ EventCounters.countSrc("level >= " + level + ".SEVERE.intValue() ? " + LogLevel.ERROR.ordinal()
+					+ " : level >= " + level + ".WARNING.intValue() ? " + LogLevel.WARN.ordinal()
+					+ " : level >= " + level + ".CONFIG.intValue() ? " + LogLevel.INFO.ordinal()
+					+ " : level >= " + level + ".FINER.intValue() ? " + LogLevel.DEBUG.ordinal()
+					+ " : " + LogLevel.TRACE.ordinal())
+			+ "}";
+
+	}
+
+    @Override
+    protected String getLoggerName(Object logger) {
+
+	return ((Logger) logger).getName();
+    }
+
+    @Override
+    protected String getLoggerLevel(Object logger) {
+
+	Logger julLogger = (Logger) logger;
+	String level = mapLevel(julLogger.getLevel());
+	return julLogger.getLevel() == null ? level : Sampling.format(level, getSamplingRate(julLogger));
+    }
+
+    @Override
+    protected void setLoggerLevel(Object logger, String level) {
+
+	try {
+	    Sampling sampling = Sampling.parse(level);
+	    Level levelInstance = J4LOG_LEVELS_MAP.get(sampling.getLevel());
+	    if (levelInstance == null || (sampling.isSampled() && SamplingRate.SETTER == null)) {
+		System.out.println("No mapping available for level " + level);
+		return;
+	    }
+
+	    // Never all the records of a sampled level at once
+	    if (sampling.isSampled()) {
+		SamplingRate.SETTER.invokeExact((Logger) logger, sampling.getRate());
+	    }
+	    ((Logger) logger).setLevel(levelInstance);
+	    if (!sampling.isSampled() && SamplingRate.SETTER != null) {
+		SamplingRate.SETTER.invokeExact((Logger) logger, 0);
+	    }
+	} catch (IllegalArgumentException e) {
+	    System.out.println("No mapping available for level " + level);
+	} catch (Throwable e) {
+	    e.printStackTrace();
+	}
+    }
+
+    /**
+     * JUL loggers without a level of their own take the level of their
+     * closest ancestor having one.
+     */
+    @Override
+    protected boolean inheritsLevels() {
+	return true;
+    }
+
+    @Override
+    protected boolean inheritLoggerLevel(Object logger, String level) {
+
+	Logger parent = ((Logger) logger).getParent();
+	if (parent == null || !level.equals(getEffectiveSampledLevel(parent))) {
+	    return false;
+	}
+	// Every change walks the whole subtree of the logger
+	if (((Logger) logger).getLevel() != null) {
+	    ((Logger) logger).setLevel(null);
+	}
+	return true;
+    }
+
+    @Override
+    protected boolean hasOwnLoggerLevel(Object logger) {
+	return ((Logger) logger).getLevel() != null;
+    }
+
+    @Override
+    protected void clearLoggerLevel(Object logger) {
+	((Logger) logger).setLevel(null);
+    }
+
+    @Override
+    protected Object applyInitialLevel(Object logger, LogLevel level, String subtreeRoot) {
+
+	return J4LOG_LEVELS_MAP.get(level);
+    }
+
+    @Override
+    public String[] getObservedClasses() {
+
+	return new String[] { JUL_LOGGER };
+    }
+
+    @Override
+    protected void activate() {
+
+	getHandlersBeforeSrc = buildGetHandlersBeforeSrc();
+	LoggerHooks.listen(FRAMEWORK, this);
+    }
+
+    @Override
+    public byte[] onClassLoaded(String className, ClassLoader classLoader, Class<?> classBeingRedefined,
+	    ProtectionDomain protectionDomain, ClassPool pool, byte[] classfileBuffer) {
+
+	if (JUL_LOGGER.equals(className)) {
+	    if (classBeingRedefined != null) {
+		return addLoggerCreatedHook(pool, classfileBuffer);
+	    }
+	    return addConsoleAppenderTransformation(pool, classfileBuffer);
+	}
+
+	return null;
+    }
+
+    /**
+     * The loggers that already exist when the agent gets attached are taken
+     * from the LogManager.
+     */
+    @Override
+    public void onClassFound(Class<?> observedClass) {
+
+	if (!JUL_LOGGER.equals(observedClass.getName())) {
+	    return;
+	}
+	for (Logger logger : getExistingLoggers(LogManager.getLogManager())) {
+	    Object initialLevel = onLoggerCreated(logger);
+	    if (initialLevel instanceof Level) {
+		logger.setLevel((Level) initialLevel);
+	    }
+	}
+    }
+
+    /*
+     * Tomcat's LogManager keeps the loggers of each class loader apart and
+     * only answers with the ones of the context class loader of the calling
+     * thread, the loggers of every web application are read from its maps.
+     */
+    private static List<Logger> getExistingLoggers(LogManager manager) {
+
+	List<Logger> loggers = new ArrayList<>();
+	Field classLoaderLoggers = findField(manager.getClass(), JULI_CLASS_LOADER_LOG_MANAGER,
+		JULI_CLASS_LOADER_LOGGERS_FIELD);
+	if (classLoaderLoggers != null) {
+	    try {
+		classLoaderLoggers.setAccessible(true);
+		// The manager guards its maps with its own lock
+		synchronized (manager) {
+		    for (Object logInfo : ((Map<?, ?>) classLoaderLoggers.get(manager)).values()) {
+			Field loggersField = findField(logInfo.getClass(), null, JULI_LOG_INFO_LOGGERS_FIELD);
+			loggersField.setAccessible(true);
+			for (Object logger : ((Map<?, ?>) loggersField.get(logInfo)).values()) {
+			    if (logger instanceof Logger) {
+				loggers.add((Logger) logger);
+			    }
+			}
+		    }
+		}
+		return loggers;
+	    } catch (Exception e) {
+		System.out.println("Error reading the loggers of each class loader from " + manager);
+		e.printStackTrace();
+		loggers.clear();
+	    }
+	}
+
+	for (String name : Collections.list(manager.getLoggerNames())) {
+	    Logger logger = manager.getLogger(name);
+	    if (logger != null) {
+		loggers.add(logger);
+	    }
+	}
+	return loggers;
+    }
+
+    /*
+     * The field declared by the class, or the superclass, with the given name,
+     * any class if null.
+     */
+    private static Field findField(Class<?> cl, String className, String fieldName) {
+
+	for (Class<?> c = cl; c != null; c = c.getSuperclass()) {
+	    if (className == null || className.equals(c.getName())) {
+		try {
+		    return c.getDeclaredField(fieldName);
+		} catch (NoSuchFieldException e) {
+		    if (className != null) {
+			return null;
+		    }
+		}
+	    }
+	}
+	return null;
+    }
+
+    /*
+     * All that's done to a Logger class already loaded when the agent gets
+     * attached, it can't get new members and its handlers are left as they
+     * are.
+     */
+    protected byte[] addLoggerCreatedHook(ClassPool pool, byte[] classfileBuffer) {
+
+	CtClass cl = null;
+	try {
+
+	    cl = pool.makeClass(new ByteArrayInputStream(classfileBuffer));
+	    String loggerCreatedSrc = String.format(JUL_LOGGER_CREATED_SRC,
+		    LoggerHooks.reportSrc(LoggerHooks.LOGGER_CREATED, FRAMEWORK, "this", "initialLevel", true));
+	    for (CtConstructor ctor : cl.getDeclaredConstructors()) {
+		if (ctor.callsSuper()) {
+		    ctor.insertAfter(loggerCreatedSrc);
+		}
+	    }
+
+	    return cl.toBytecode();
+
+	} catch (Exception e) {
+	    System.out.println("Error adding logger created hook.");
+	    e.printStackTrace();
+	} finally {
+	    if (cl != null) {
+		cl.detach();
+	    }
+	}
+
+	return null;
+    }
+
+    protected byte[] addConsoleAppenderTransformation(ClassPool pool, byte[] classfileBuffer) {
+
+	CtClass cl = null;
+	try {
+
+	    CtClass loggerCtClass = pool.makeClass(new ByteArrayInputStream(classfileBuffer));
+	    cl = loggerCtClass;
+	    
+	    // Transform addHandler
+	    CtMethod methodAddHandler = loggerCtClass.getMethod(JUL_LOGGER_ADD_HANDLER_METHOD_NAME,
+		    JUL_LOGGER_ADD_HANDLER_METHOD_DESC);
+	    methodAddHandler.insertAfter(JUL_LOGGER_ADD_HANDLER_AFTER_SRC);
+
+	    // Report every new logger, only from the constructors calling
+	    // super() so that each instance gets reported just once
+	    LoggerHooks.addReportMethod(loggerCtClass);
+	    for (CtConstructor ctor : loggerCtClass.getDeclaredConstructors()) {
+		if (ctor.callsSuper()) {
+		    ctor.insertAfter(String.format(JUL_LOGGER_CREATED_SRC, LoggerHooks.reportSrc(
+			    LoggerHooks.LOGGER_CREATED, FRAMEWORK, "this", "initialLevel", false)));
+		}
+	    }
+	    
+	    // Sampled levels
+	    for (String fieldSrc : Sampling.fieldsSrc()) {
+		loggerCtClass.addField(CtField.make(fieldSrc, loggerCtClass));
+	    }
+	    loggerCtClass.addMethod(CtNewMethod.make(JUL_SAMPLING_RATE_METHOD_SRC, loggerCtClass));
+
+	    // Event counters, each insertion goes before the previous one so
+	    // sampling comes first
+	    loggerCtClass.addField(CtField.make(EventCounters.fieldSrc(), loggerCtClass));
+	    for (String methodSrc : EventCounters.methodsSrc()) {
+		loggerCtClass.addMethod(CtNewMethod.make(methodSrc, loggerCtClass));
+	    }
+	    CtMethod methodLog = loggerCtClass.getMethod(JUL_LOGGER_LOG_METHOD_NAME, JUL_LOGGER_LOG_METHOD_DESC);
+	    methodLog.insertBefore(JUL_COUNT_EVENT_SRC);
+	    methodLog.insertBefore(JUL_SAMPLING_SRC);
+
+	    // Add consoleLogger field
+	    CtField consoleLoggerField = CtField.make(JUL_LOGGER_CONSOLE_LOGGER_FLAG_DEF, loggerCtClass);
+	    loggerCtClass.addField(consoleLoggerField, JUL_LOGGER_CONSOLE_LOGGER_FLAG_INIT);
+	    
+	    // Transform getHandlers
+	    System.setProperty(JUL_SIMPLE_FORMATTER_FORMAT_PROPERTY, JUL_SIMPLE_FORMATTER_FORMAT);
+	    CtMethod methodGetHandlers = loggerCtClass.getMethod(JUL_LOGGER_GET_HANDLERS_METHOD_NAME,
+		    JUL_LOGGER_GET_HANDLERS_METHOD_DESC);
+	    methodGetHandlers.insertBefore(getHandlersBeforeSrc);
+
+	    return loggerCtClass.toBytecode();
+
+	} catch (Exception e) {
+	    System.out.println("Error adding console handler transformation.");
+	    e.printStackTrace();
+	} finally {
+	    if (cl != null) {
+		cl.detach();
+	    }
+	}
+
+	return null;
+
+    }
+
+    /*
+     * Built on activation, the async console handler option may come with the
+     * agent arguments.
+     */
+    private static String buildGetHandlersBeforeSrc() {
+
+	return
+			"{"
+			+ "if(\"\".equals(name)) {"
+        		+ "if(!this." + JUL_LOGGER_CONSOLE_LOGGER_FLAG_NAME + "){"
+    				+ "this." + JUL_LOGGER_CONSOLE_LOGGER_FLAG_NAME + " = true;"
+            			+ Handler.class.getName() + " sh = null;"
+            			+ (Boolean.getBoolean(AsyncConsoleHandler.ASYNC_PROPERTY)
+            				? "try {"
+            				+ "sh = (" + Handler.class.getName() + ") java.lang.Class.forName(\""
+            					+ AsyncConsoleHandler.class.getName() + "\", true, "
+            					+ "java.lang.ClassLoader.getSystemClassLoader()).newInstance();"
+            				+ "} catch (java.lang.Throwable t) {"
+            				+ "t.printStackTrace();"
+            				+ "}"
+            				: "")
+            			+ "if (sh == null) {"
+            			+ "sh = new " + StreamHandler.class.getName()
+            			+ "(java.lang.System.out, new " + SimpleFormatter.class.getName() + "());"
+            			+ "}"
+            			+ "sh.setLevel(" + Level.class.getName() + ".ALL);"
+            			+ "handlers.clear();"
+            			+ "handlers.add(sh);"
+//            		+ "}"
+        		+ "} else if(handlers.size() > 0){((" + Handler.class.getName() + ")handlers.get(0)).flush();}"
+			+ "}"
+			+ "};";
+    }
+
+    protected String mapLevel(Level julLevel) {
+
+	if (julLevel == null) {
+	    return LogLevel.INDETERMINATE.name();
+	} else {
+	    LogLevel level = JUL_LEVELS_MAP.get(julLevel);
+	    return level == null ? null : level.name();
+	}
+    }
+
+    protected Level mapLevel(String j4logLevel) throws IllegalAccessException, IllegalArgumentException,
+	    InvocationTargetException, NoSuchMethodException, SecurityException {
+
+	return J4LOG_LEVELS_MAP.get(LogLevel.valueOf(j4logLevel));
+    }
+
+    /**
+     * Finds a logger effective level, i.e. if the logger level is
+     * <code>null</code> it will introspect the field containing the real level
+     * (<code>levelValue</code>).
+     * 
+     * @param logger
+     * @return
+     */
+    protected Level getEffectiveLoggerLevel(Logger logger) {
+
+	try {
+
+	    if (logger.getLevel() != null) {
+		return logger.getLevel();
+	    }
+
+	    if (LevelValue.GETTER == null) {
+		return null;
+	    }
+	    int levelValue = (int) LevelValue.GETTER.invokeExact(logger);
+	    return JUL_LOG_LEVELS_INT_MAP.get(levelValue);
+
+	} catch (Throwable e) {
+	    e.printStackTrace();
+	}
+
+	return null;
+    }
+
+    /**
+     * The effective level of a logger, followed by the sampling rate of the
+     * logger it comes from.
+     * 
+     * @param logger
+     * @return
+     */
+    protected String getEffectiveSampledLevel(Logger logger) {
+
+	String level = mapLevel(getEffectiveLoggerLevel(logger));
+	Logger holder = logger;
+	while (holder != null && holder.getLevel() == null) {
+	    holder = holder.getParent();
+	}
+	return holder == null ? level : Sampling.format(level, getSamplingRate(holder));
+    }
+
+    private static int getSamplingRate(Logger logger) {
+
+	try {
+	    return SamplingRate.GETTER == null ? 0 : (int) SamplingRate.GETTER.invokeExact(logger);
+	} catch (Throwable e) {
+	    return 0;
+	}
+    }
+
+    @Override
+    protected AtomicLongArray getLoggerEventCounters(Object logger) {
+
+	try {
+	    return EventCountersField.GETTER == null ? null : (AtomicLongArray) EventCountersField.GETTER
+		    .invokeExact((Logger) logger);
+	} catch (Throwable e) {
+	    return null;
+	}
+    }
+
+    /*
+     * The sampling fields only exist if the Logger class was loaded after the
+     * agent, resolved on first use like the level value.
+     */
+    private static class SamplingRate {
+
+	private static final MethodHandle GETTER;
+	private static final MethodHandle SETTER;
+
+	static {
+
+	    MethodHandle getter = null;
+	    MethodHandle setter = null;
+	    try {
+		getter = MethodHandles.publicLookup().findGetter(Logger.class, Sampling.RATE_FIELD_NAME, int.class);
+		setter = MethodHandles.publicLookup().findSetter(Logger.class, Sampling.RATE_FIELD_NAME, int.class);
+	    } catch (Exception e) {
+		System.out.println("Sampled levels won't be available for JUL: " + e);
+	    }
+	    GETTER = getter;
+	    SETTER = setter;
+	}
+    }
+
+    private static class EventCountersField {
+
+	private static final MethodHandle GETTER;
+
+	static {
+
+	    MethodHandle getter = null;
+	    try {
+		getter = MethodHandles.publicLookup().findGetter(Logger.class, EventCounters.FIELD_NAME,
+			AtomicLongArray.class);
+	    } catch (Exception e) {
+		System.out.println("Event counts won't be available for JUL: " + e);
+	    }
+	    GETTER = getter;
+	}
+    }
+
+    /*
+     * Resolved once, on first use: touching the Logger class while the plug-in
+     * gets initialized would load it before the agent can transform it. Null
+     * if the running JVM doesn't grant access to the field.
+     */
+    private static class LevelValue {
+
+	private static final MethodHandle GETTER = getter();
+
+	private static MethodHandle getter() {
+
+	    try {
+		Field levelValueField = Logger.class.getDeclaredField(JUL_LOGGER_LEVEL_VALUE_FIELD);
+		levelValueField.setAccessible(true);
+		return MethodHandles.lookup().unreflectGetter(levelValueField)
+			.asType(MethodType.methodType(int.class, Logger.class));
+	    } catch (Exception e) {
+		System.out.println("Logger effective levels won't be available: " + e);
+		return null;
+	    }
+	}
+    }
+
+}
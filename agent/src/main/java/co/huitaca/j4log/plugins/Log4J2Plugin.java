@@ -0,0 +1,757 @@
+/*
+ * Copyright 2016 Camilo Bermúdez
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.huitaca.j4log.plugins;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodHandles.Lookup;
+import java.lang.invoke.MethodType;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+
+import javassist.CannotCompileException;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.expr.ExprEditor;
+import javassist.expr.MethodCall;
+import co.huitaca.j4log.J4LogPlugin;
+import co.huitaca.j4log.LogLevel;
+import co.huitaca.j4log.instrument.LoggerHooks;
+
+/**
+ * log4j 2 loggers take their level from the <code>LoggerConfig</code>s of the
+ * configuration of their context, each time the context updates them. Levels
+ * are therefore set on the configuration, and each context gets updated once
+ * per batch.
+ */
+public class Log4J2Plugin extends J4LogPlugin {
+
+    private static final String FRAMEWORK = "log4j2";
+
+    // The log4j 2 root logger has no name
+    private static final String ROOT_LOGGER_NAME = "root";
+
+    private static final String LOG4J2_LOG_MANAGER = "org.apache.logging.log4j.LogManager";
+    private static final String LOG4J2_LOGGER_CONTEXT = "org.apache.logging.log4j.core.LoggerContext";
+    private static final String LOG4J2_LOGGER = "org.apache.logging.log4j.core.Logger";
+    private static final String LOG4J2_CONFIGURATION = "org.apache.logging.log4j.core.config.Configuration";
+    private static final String LOG4J2_LOGGER_CONFIG = "org.apache.logging.log4j.core.config.LoggerConfig";
+    private static final String LOG4J2_LEVEL = "org.apache.logging.log4j.Level";
+    private static final String LOG4J2_LOGGER_CONTEXT_NEW_INSTANCE = "newInstance";
+    private static final String LOG4J2_LOGGER_CONTEXT_GET_CONFIGURATION = "getConfiguration";
+    private static final String LOG4J2_LOGGER_CONTEXT_UPDATE_LOGGERS = "updateLoggers";
+    private static final String LOG4J2_LOGGER_CONTEXT_GET_LOGGERS = "getLoggers";
+    private static final String LOG4J2_LOG_MANAGER_GET_CONTEXT = "getContext";
+    private static final String LOG4J2_LOGGER_GET_NAME = "getName";
+    private static final String LOG4J2_LOGGER_GET_LEVEL = "getLevel";
+    private static final String LOG4J2_LOGGER_SET_LEVEL = "setLevel";
+    private static final String LOG4J2_LOGGER_GET_CONTEXT = "getContext";
+    private static final String LOG4J2_CONFIGURATION_GET_LOGGER_CONFIG = "getLoggerConfig";
+    private static final String LOG4J2_CONFIGURATION_GET_LOGGERS = "getLoggers";
+    private static final String LOG4J2_CONFIGURATION_ADD_LOGGER = "addLogger";
+    private static final String LOG4J2_CONFIGURATION_REMOVE_LOGGER = "removeLogger";
+    private static final String LOG4J2_LOGGER_CONFIG_GET_NAME = "getName";
+    private static final String LOG4J2_LOGGER_CONFIG_SET_LEVEL = "setLevel";
+    private static final String LOG4J2_LEVEL_TO_LEVEL = "toLevel";
+
+    private static final Map<String, LogLevel> LOG4J2_LEVELS_MAP;
+    private static final Map<LogLevel, String> J4LOG_LEVELS_MAP;
+
+    static {
+
+	LOG4J2_LEVELS_MAP = new HashMap<String, LogLevel>();
+	LOG4J2_LEVELS_MAP.put("ALL", LogLevel.ALL);
+	LOG4J2_LEVELS_MAP.put("TRACE", LogLevel.TRACE);
+	LOG4J2_LEVELS_MAP.put("DEBUG", LogLevel.DEBUG);
+	LOG4J2_LEVELS_MAP.put("INFO", LogLevel.INFO);
+	LOG4J2_LEVELS_MAP.put("WARN", LogLevel.WARN);
+	LOG4J2_LEVELS_MAP.put("ERROR", LogLevel.ERROR);
+	LOG4J2_LEVELS_MAP.put("FATAL", LogLevel.FATAL);
+	LOG4J2_LEVELS_MAP.put("OFF", LogLevel.OFF);
+
+	J4LOG_LEVELS_MAP = new HashMap<LogLevel, String>();
+	J4LOG_LEVELS_MAP.put(LogLevel.ALL, "ALL");
+	J4LOG_LEVELS_MAP.put(LogLevel.TRACE, "TRACE");
+	J4LOG_LEVELS_MAP.put(LogLevel.DEBUG, "DEBUG");
+	J4LOG_LEVELS_MAP.put(LogLevel.INFO, "INFO");
+	J4LOG_LEVELS_MAP.put(LogLevel.WARN, "WARN");
+	J4LOG_LEVELS_MAP.put(LogLevel.ERROR, "ERROR");
+	J4LOG_LEVELS_MAP.put(LogLevel.FATAL, "FATAL");
+	J4LOG_LEVELS_MAP.put(LogLevel.OFF, "OFF");
+
+    }
+
+    /*
+     * Accessors bound once per class of log4j 2 handled, loggers and contexts
+     * alike, all of them resolved in the class loader of that class.
+     */
+    private static final ClassValue<Log4J2Bindings> BINDINGS = new ClassValue<Log4J2Bindings>() {
+
+	@Override
+	protected Log4J2Bindings computeValue(Class<?> log4j2Class) {
+	    return new Log4J2Bindings(log4j2Class);
+	}
+    };
+
+    /*
+     * Every context j4log has seen a logger of. Weakly held, contexts are
+     * reachable from their class loader anyway.
+     */
+    private final Set<Object> contexts = Collections.newSetFromMap(new WeakHashMap<Object, Boolean>());
+
+    /*
+     * The subtree roots each configuration got an initial level for. A new
+     * configuration, after the context gets reconfigured, starts over.
+     */
+    private final Map<Object, Set<String>> initialRoots = new WeakHashMap<>();
+
+    @Override
+    public Object onLoggerCreated(Object logger) {
+
+	try {
+	    addContext(BINDINGS.get(logger.getClass()).getContext(logger));
+	} catch (Throwable e) {
+	}
+	return super.onLoggerCreated(logger);
+    }
+
+    /**
+     * Sets the levels on the configuration of each context, clearing the
+     * levels configured for the descendants of each logger so they inherit
+     * it, then has each context update its loggers once. Forcing the levels
+     * gives every logger of each subtree its own configuration.
+     * 
+     * The loggers changed, or given a configuration of their own, that had
+     * none in any context are the inherited ones.
+     */
+    @Override
+    public synchronized Map<String, String> setLevels(Map<String, String> levels, boolean force,
+	    Set<String> inherited) {
+
+	List<Object> contexts = getContexts();
+	if (contexts.isEmpty()) {
+	    return Collections.emptyMap();
+	}
+
+	Map<String, String> configLevels = new HashMap<>();
+	for (Entry<String, String> levelEntry : levels.entrySet()) {
+	    String level = toLog4J2Level(levelEntry.getValue());
+	    if (level == null) {
+		System.out.println("No mapping available for level " + levelEntry.getValue());
+		continue;
+	    }
+	    configLevels.put(toConfigName(levelEntry.getKey()), level);
+	}
+
+	Map<String, String> previous = getSubtrees(levels.keySet());
+	Set<String> configured = inherited == null ? null : getConfiguredNames(contexts);
+	if (force) {
+	    for (String logger : previous.keySet()) {
+		String name = toConfigName(logger);
+		String level = getNearestLevel(name, configLevels);
+		if (level != null && !configLevels.containsKey(name)) {
+		    configLevels.put(name, level);
+		}
+	    }
+	}
+	for (Object context : contexts) {
+	    try {
+		BINDINGS.get(context.getClass()).apply(context, configLevels, true);
+	    } catch (Throwable e) {
+		System.out.println("Error setting the levels of log4j 2 context: " + context);
+		e.printStackTrace();
+	    }
+	}
+
+	Map<String, String> current = getSubtrees(levels.keySet());
+	Map<String, String> changed = new TreeMap<>();
+	for (Entry<String, String> loggerEntry : previous.entrySet()) {
+	    String logger = loggerEntry.getKey();
+	    boolean levelChanged = !loggerEntry.getValue().equals(current.get(logger));
+	    if (levelChanged) {
+		changed.put(logger, loggerEntry.getValue());
+	    }
+	    String name = toConfigName(logger);
+	    if (configured != null && !configured.contains(name)
+		    && (levelChanged || configLevels.containsKey(name))) {
+		inherited.add(logger);
+	    }
+	}
+
+	return changed;
+    }
+
+    /**
+     * Drops the configurations of the loggers, then has each context update
+     * its loggers once.
+     */
+    @Override
+    public synchronized void inheritLevels(Collection<String> loggers) {
+
+	Set<String> names = new HashSet<>();
+	for (String logger : loggers) {
+	    names.add(toConfigName(logger));
+	}
+	for (Object context : getContexts()) {
+	    try {
+		BINDINGS.get(context.getClass()).removeConfigs(context, names);
+	    } catch (Throwable e) {
+		System.out.println("Error clearing the levels of log4j 2 context: " + context);
+		e.printStackTrace();
+	    }
+	}
+    }
+
+    @Override
+    public void inheritLevel(String logger) {
+	inheritLevels(Collections.singleton(logger));
+    }
+
+    /**
+     * Sets the level of the logger only, although its descendants without a
+     * level configured inherit it.
+     */
+    @Override
+    public synchronized void setLevel(String logger, String level) {
+
+	String log4j2Level = toLog4J2Level(level);
+	if (log4j2Level == null) {
+	    System.out.println("No mapping available for level " + level);
+	    return;
+	}
+	Map<String, String> configLevels = Collections.singletonMap(toConfigName(logger), log4j2Level);
+	for (Object context : getContexts()) {
+	    try {
+		BINDINGS.get(context.getClass()).apply(context, configLevels, false);
+	    } catch (Throwable e) {
+		System.out.println("Error setting the levels of log4j 2 context: " + context);
+		e.printStackTrace();
+	    }
+	}
+    }
+
+    /*
+     * Sampled levels aren't supported by log4j 2 loggers, null as for any
+     * level without a mapping.
+     */
+    private static String toLog4J2Level(String j4logLevel) {
+
+	try {
+	    return j4logLevel == null ? null : J4LOG_LEVELS_MAP.get(LogLevel.valueOf(j4logLevel));
+	} catch (IllegalArgumentException e) {
+	    return null;
+	}
+    }
+
+    @Override
+    protected String getLoggerName(Object logger) {
+
+	try {
+	    String name = BINDINGS.get(logger.getClass()).getName(logger);
+	    return name == null || name.isEmpty() ? ROOT_LOGGER_NAME : name;
+	} catch (Throwable e) {
+	    return null;
+	}
+    }
+
+    @Override
+    protected String getLoggerLevel(Object logger) {
+
+	try {
+	    return BINDINGS.get(logger.getClass()).getLevel(logger);
+	} catch (Throwable e) {
+	    return null;
+	}
+    }
+
+    @Override
+    protected void setLoggerLevel(Object logger, String j4logLevel) {
+
+	try {
+	    Log4J2Bindings bindings = BINDINGS.get(logger.getClass());
+	    String name = toConfigName(bindings.getName(logger));
+	    String level = toLog4J2Level(j4logLevel);
+	    if (level == null) {
+		System.out.println("No mapping available for level " + j4logLevel);
+		return;
+	    }
+	    bindings.apply(bindings.getContext(logger), Collections.singletonMap(name, level), false);
+	} catch (Throwable e) {
+	}
+    }
+
+    /**
+     * Levels come from the configuration, unless set on the logger directly.
+     */
+    @Override
+    protected boolean inheritsLevels() {
+	return true;
+    }
+
+    /**
+     * Whether the configuration has a <code>LoggerConfig</code> of the
+     * logger name, the root one always does.
+     */
+    @Override
+    protected boolean hasOwnLoggerLevel(Object logger) {
+
+	try {
+	    Log4J2Bindings bindings = BINDINGS.get(logger.getClass());
+	    return bindings.isConfigured(bindings.getConfiguration(logger), toConfigName(bindings.getName(logger)));
+	} catch (Throwable e) {
+	    return true;
+	}
+    }
+
+    @Override
+    protected void clearLoggerLevel(Object logger) {
+
+	try {
+	    Log4J2Bindings bindings = BINDINGS.get(logger.getClass());
+	    bindings.removeConfigs(bindings.getContext(logger),
+		    Collections.singleton(toConfigName(bindings.getName(logger))));
+	} catch (Throwable e) {
+	}
+    }
+
+    /**
+     * The configuration gets the level, so the next updates of the context
+     * keep it, but the context isn't updated for a single logger, the level
+     * is set on the new logger directly.
+     * 
+     * Levels given to a whole subtree get a single <code>LoggerConfig</code>
+     * per configuration, at the subtree root, each one added walks every
+     * other. Only the loggers matched one by one, or having a configuration
+     * of their own below the root, get theirs.
+     */
+    @Override
+    protected Object applyInitialLevel(Object logger, LogLevel level, String subtreeRoot) {
+
+	try {
+	    Log4J2Bindings bindings = BINDINGS.get(logger.getClass());
+	    String log4j2Level = J4LOG_LEVELS_MAP.get(level);
+	    if (subtreeRoot == null) {
+		bindings.setInitialLevel(logger, null, log4j2Level, false);
+		return null;
+	    }
+	    String root = toConfigName(subtreeRoot);
+	    Object config = bindings.getConfiguration(logger);
+	    boolean configured;
+	    synchronized (initialRoots) {
+		Set<String> roots = initialRoots.get(config);
+		if (roots == null) {
+		    roots = new HashSet<>();
+		    initialRoots.put(config, roots);
+		}
+		configured = !roots.add(root);
+		if (!configured) {
+		    bindings.setConfigLevel(config, root, log4j2Level);
+		}
+	    }
+	    bindings.setInitialLevel(logger, root, log4j2Level, configured);
+	} catch (Throwable e) {
+	}
+	return null;
+    }
+
+    @Override
+    protected void activate() {
+	LoggerHooks.listen(FRAMEWORK, this);
+    }
+
+    @Override
+    public String[] getObservedClasses() {
+
+	return new String[] { LOG4J2_LOGGER_CONTEXT };
+    }
+
+    @Override
+    public void onClassLoading(String className, ClassLoader classLoader, Class<?> classBeingRedefined) {
+
+	if (LOG4J2_LOGGER_CONTEXT.equals(className)) {
+	    System.out.println("Transforming log4j 2 LoggerContext class in Classloader: " + classLoader);
+	}
+    }
+
+    @Override
+    public byte[] onClassLoaded(String className, ClassLoader classLoader, Class<?> classBeingRedefined,
+	    ProtectionDomain protectionDomain, ClassPool pool, byte[] classfileBuffer) {
+
+	if (LOG4J2_LOGGER_CONTEXT.equals(className)) {
+	    return addLoggerCreatedHook(pool, classfileBuffer, classBeingRedefined != null);
+	}
+
+	return null;
+    }
+
+    /**
+     * The loggers that already exist when the agent gets attached are taken
+     * from the context of the class loader of each LoggerContext found.
+     */
+    @Override
+    public void onClassFound(Class<?> observedClass) {
+
+	if (!LOG4J2_LOGGER_CONTEXT.equals(observedClass.getName())) {
+	    return;
+	}
+	try {
+	    ClassLoader classLoader = observedClass.getClassLoader();
+	    Class<?> logManager = Class.forName(LOG4J2_LOG_MANAGER, true, classLoader);
+	    Object context = logManager.getMethod(LOG4J2_LOG_MANAGER_GET_CONTEXT, ClassLoader.class, boolean.class)
+		    .invoke(null, classLoader, false);
+	    if (!observedClass.isInstance(context)) {
+		return;
+	    }
+	    addContext(context);
+	    for (Object logger : (Collection<?>) observedClass.getMethod(LOG4J2_LOGGER_CONTEXT_GET_LOGGERS).invoke(
+		    context)) {
+		onLoggerCreated(logger);
+	    }
+	} catch (Exception e) {
+	    System.out.println("Error reading the loggers of log4j 2 in ClassLoader: "
+		    + observedClass.getClassLoader());
+	    e.printStackTrace();
+	}
+    }
+
+    /*
+     * Each logger of a context is instantiated once, the first time its name
+     * is asked for, right before it goes into the registry of the context.
+     */
+    private byte[] addLoggerCreatedHook(ClassPool pool, byte[] classfileBuffer, boolean retransform) {
+
+	CtClass cl = null;
+
+	try {
+
+	    cl = pool.makeClass(new java.io.ByteArrayInputStream(classfileBuffer));
+	    if (!retransform) {
+		LoggerHooks.addReportMethod(cl);
+	    }
+
+	    final String reportCreatedSrc = LoggerHooks.reportSrc(LoggerHooks.LOGGER_CREATED, FRAMEWORK, "$_",
+		    null, retransform);
+	    cl.instrument(new ExprEditor() {
+
+		@Override
+		public void edit(MethodCall m) throws CannotCompileException {
+		    if (LOG4J2_LOGGER_CONTEXT_NEW_INSTANCE.equals(m.getMethodName())) {
+			m.replace("{ $_ = $proceed($$); " + reportCreatedSrc + " }");
+		    }
+		}
+	    });
+
+	    return cl.toBytecode();
+
+	} catch (Exception e) {
+	    System.out.println("Error adding logger created hook.");
+	    e.printStackTrace();
+	} finally {
+	    if (cl != null) {
+		cl.detach();
+	    }
+	}
+
+	return null;
+    }
+
+    private void addContext(Object context) {
+
+	if (context == null) {
+	    return;
+	}
+	synchronized (contexts) {
+	    contexts.add(context);
+	}
+    }
+
+    private List<Object> getContexts() {
+
+	synchronized (contexts) {
+	    return new ArrayList<>(contexts);
+	}
+    }
+
+    // The names having a LoggerConfig of their own in any of the contexts
+    private static Set<String> getConfiguredNames(List<Object> contexts) {
+
+	Set<String> names = new HashSet<>();
+	names.add("");
+	for (Object context : contexts) {
+	    try {
+		names.addAll(BINDINGS.get(context.getClass()).getConfiguredNames(context));
+	    } catch (Throwable e) {
+	    }
+	}
+	return names;
+    }
+
+    private Map<String, String> getSubtrees(Collection<String> roots) {
+
+	if (roots.contains(ROOT_LOGGER_NAME)) {
+	    return registry.getSubtree(this, null);
+	}
+	Map<String, String> loggers = new HashMap<>();
+	for (String root : roots) {
+	    loggers.putAll(registry.getSubtree(this, root));
+	}
+	return loggers;
+    }
+
+    private static String getNearestLevel(String name, Map<String, String> levels) {
+
+	for (int i = name.length(); i > 0; i = name.lastIndexOf('.', i - 1)) {
+	    String level = levels.get(name.substring(0, i));
+	    if (level != null) {
+		return level;
+	    }
+	}
+	return levels.get("");
+    }
+
+    private static String toConfigName(String logger) {
+	return ROOT_LOGGER_NAME.equals(logger) ? "" : logger;
+    }
+
+    private static String mapLevel(Object log4j2Level) {
+
+	if (log4j2Level == null) {
+	    return LogLevel.INDETERMINATE.name();
+	} else {
+	    LogLevel level = LOG4J2_LEVELS_MAP.get(log4j2Level.toString().trim().toUpperCase());
+	    return level == null ? null : level.name();
+	}
+    }
+
+    private static class Log4J2Bindings {
+
+	private static final MethodType GET_STRING_TYPE = MethodType.methodType(String.class, Object.class);
+	private static final MethodType GET_OBJECT_TYPE = MethodType.methodType(Object.class, Object.class);
+	private static final MethodType SET_OBJECT_TYPE = MethodType.methodType(void.class, Object.class,
+		Object.class);
+
+	private final MethodHandle getName;
+	private final MethodHandle getLevel;
+	private final MethodHandle setLevel;
+	private final MethodHandle getContext;
+	private final MethodHandle getConfiguration;
+	private final MethodHandle updateLoggers;
+	private final MethodHandle getLoggerConfig;
+	private final MethodHandle getLoggerConfigs;
+	private final MethodHandle addLoggerConfig;
+	private final MethodHandle removeLoggerConfig;
+	private final MethodHandle newLoggerConfig;
+	private final MethodHandle getLoggerConfigName;
+	private final MethodHandle setLoggerConfigLevel;
+	private final Map<String, Object> log4j2Levels = new HashMap<>();
+	private final Map<Object, String> j4logLevels = new IdentityHashMap<>();
+
+	private Log4J2Bindings(Class<?> log4j2Class) {
+
+	    try {
+
+		ClassLoader classLoader = log4j2Class.getClassLoader();
+		Class<?> loggerClass = Class.forName(LOG4J2_LOGGER, false, classLoader);
+		Class<?> contextClass = Class.forName(LOG4J2_LOGGER_CONTEXT, false, classLoader);
+		Class<?> configurationClass = Class.forName(LOG4J2_CONFIGURATION, false, classLoader);
+		Class<?> loggerConfigClass = Class.forName(LOG4J2_LOGGER_CONFIG, false, classLoader);
+		Class<?> levelClass = Class.forName(LOG4J2_LEVEL, false, classLoader);
+
+		Lookup lookup = MethodHandles.publicLookup().in(log4j2Class);
+		getName = lookup.findVirtual(loggerClass, LOG4J2_LOGGER_GET_NAME, MethodType.methodType(String.class))
+			.asType(GET_STRING_TYPE);
+		getLevel = lookup.findVirtual(loggerClass, LOG4J2_LOGGER_GET_LEVEL, MethodType.methodType(levelClass))
+			.asType(GET_OBJECT_TYPE);
+		setLevel = lookup.findVirtual(loggerClass, LOG4J2_LOGGER_SET_LEVEL,
+			MethodType.methodType(void.class, levelClass)).asType(SET_OBJECT_TYPE);
+		getContext = lookup.findVirtual(loggerClass, LOG4J2_LOGGER_GET_CONTEXT,
+			MethodType.methodType(contextClass)).asType(GET_OBJECT_TYPE);
+		getConfiguration = lookup.findVirtual(contextClass, LOG4J2_LOGGER_CONTEXT_GET_CONFIGURATION,
+			MethodType.methodType(configurationClass)).asType(GET_OBJECT_TYPE);
+		updateLoggers = lookup.findVirtual(contextClass, LOG4J2_LOGGER_CONTEXT_UPDATE_LOGGERS,
+			MethodType.methodType(void.class)).asType(MethodType.methodType(void.class, Object.class));
+		getLoggerConfig = lookup.findVirtual(configurationClass, LOG4J2_CONFIGURATION_GET_LOGGER_CONFIG,
+			MethodType.methodType(loggerConfigClass, String.class)).asType(
+			MethodType.methodType(Object.class, Object.class, String.class));
+		getLoggerConfigs = lookup.findVirtual(configurationClass, LOG4J2_CONFIGURATION_GET_LOGGERS,
+			MethodType.methodType(Map.class)).asType(MethodType.methodType(Map.class, Object.class));
+		addLoggerConfig = lookup.findVirtual(configurationClass, LOG4J2_CONFIGURATION_ADD_LOGGER,
+			MethodType.methodType(void.class, String.class, loggerConfigClass)).asType(
+			MethodType.methodType(void.class, Object.class, String.class, Object.class));
+		removeLoggerConfig = lookup.findVirtual(configurationClass, LOG4J2_CONFIGURATION_REMOVE_LOGGER,
+			MethodType.methodType(void.class, String.class)).asType(
+			MethodType.methodType(void.class, Object.class, String.class));
+		newLoggerConfig = lookup.findConstructor(loggerConfigClass,
+			MethodType.methodType(void.class, String.class, levelClass, boolean.class)).asType(
+			MethodType.methodType(Object.class, String.class, Object.class, boolean.class));
+		getLoggerConfigName = lookup.findVirtual(loggerConfigClass, LOG4J2_LOGGER_CONFIG_GET_NAME,
+			MethodType.methodType(String.class)).asType(GET_STRING_TYPE);
+		setLoggerConfigLevel = lookup.findVirtual(loggerConfigClass, LOG4J2_LOGGER_CONFIG_SET_LEVEL,
+			MethodType.methodType(void.class, levelClass)).asType(SET_OBJECT_TYPE);
+
+		MethodHandle toLevel = lookup.findStatic(levelClass, LOG4J2_LEVEL_TO_LEVEL,
+			MethodType.methodType(levelClass, String.class));
+		for (Entry<LogLevel, String> entry : J4LOG_LEVELS_MAP.entrySet()) {
+		    Object log4j2Level = toLevel.invoke(entry.getValue());
+		    log4j2Levels.put(entry.getValue(), log4j2Level);
+		    j4logLevels.put(log4j2Level, entry.getKey().name());
+		}
+
+	    } catch (Throwable e) {
+		throw new IllegalStateException("Unable to bind log4j 2 accessors for " + log4j2Class, e);
+	    }
+	}
+
+	private String getName(Object logger) throws Throwable {
+	    return (String) getName.invokeExact(logger);
+	}
+
+	private String getLevel(Object logger) throws Throwable {
+
+	    Object log4j2Level = (Object) getLevel.invokeExact(logger);
+	    String level = log4j2Level == null ? null : j4logLevels.get(log4j2Level);
+	    return level == null ? mapLevel(log4j2Level) : level;
+	}
+
+	private Object getContext(Object logger) throws Throwable {
+	    return (Object) getContext.invokeExact(logger);
+	}
+
+	private Object getConfiguration(Object logger) throws Throwable {
+	    return (Object) getConfiguration.invokeExact((Object) getContext.invokeExact(logger));
+	}
+
+	/*
+	 * The logger gets a configuration of its own unless it takes its level
+	 * from the one of the subtree root. If that one was there before the
+	 * logger got created, the logger has its level already.
+	 */
+	private void setInitialLevel(Object logger, String subtreeRoot, String level, boolean rootConfigured)
+		throws Throwable {
+
+	    Object config = getConfiguration(logger);
+	    String name = toConfigName(getName(logger));
+	    if (subtreeRoot != null
+		    && subtreeRoot.equals((String) getLoggerConfigName.invokeExact((Object) getLoggerConfig
+			    .invokeExact(config, name)))) {
+		if (!rootConfigured) {
+		    setLevel.invokeExact(logger, log4j2Levels.get(level));
+		}
+		return;
+	    }
+	    setConfigLevel(config, name, level);
+	    setLevel.invokeExact(logger, log4j2Levels.get(level));
+	}
+
+	/*
+	 * A single update of the loggers of the context for the whole batch,
+	 * each update walks every logger and its configuration.
+	 */
+	private void apply(Object context, Map<String, String> levels, boolean clearDescendants) throws Throwable {
+
+	    Object config = (Object) getConfiguration.invokeExact(context);
+	    if (clearDescendants) {
+		Map<?, ?> loggerConfigs = (Map<?, ?>) getLoggerConfigs.invokeExact(config);
+		for (Entry<?, ?> configEntry : new ArrayList<>(loggerConfigs.entrySet())) {
+		    String name = (String) configEntry.getKey();
+		    if (!levels.containsKey(name) && hasAncestorIn(name, levels)) {
+			setLoggerConfigLevel.invokeExact(configEntry.getValue(), (Object) null);
+		    }
+		}
+	    }
+	    for (Entry<String, String> levelEntry : levels.entrySet()) {
+		setConfigLevel(config, levelEntry.getKey(), levelEntry.getValue());
+	    }
+	    updateLoggers.invokeExact(context);
+	}
+
+	private boolean isConfigured(Object config, String name) throws Throwable {
+
+	    return name.isEmpty()
+		    || name.equals((String) getLoggerConfigName.invokeExact((Object) getLoggerConfig.invokeExact(
+			    config, name)));
+	}
+
+	private Set<String> getConfiguredNames(Object context) throws Throwable {
+
+	    Object config = (Object) getConfiguration.invokeExact(context);
+	    Set<String> names = new HashSet<>();
+	    for (Object name : ((Map<?, ?>) getLoggerConfigs.invokeExact(config)).keySet()) {
+		names.add((String) name);
+	    }
+	    return names;
+	}
+
+	/*
+	 * The root configuration can't be removed. The context only gets
+	 * updated if any configuration was.
+	 */
+	private void removeConfigs(Object context, Set<String> names) throws Throwable {
+
+	    Object config = (Object) getConfiguration.invokeExact(context);
+	    boolean removed = false;
+	    for (String name : names) {
+		if (!name.isEmpty() && isConfigured(config, name)) {
+		    removeLoggerConfig.invokeExact(config, name);
+		    removed = true;
+		}
+	    }
+	    if (removed) {
+		updateLoggers.invokeExact(context);
+	    }
+	}
+
+	private void setConfigLevel(Object config, String name, String level) throws Throwable {
+
+	    Object log4j2Level = log4j2Levels.get(level);
+	    Object loggerConfig = (Object) getLoggerConfig.invokeExact(config, name);
+	    if (name.equals((String) getLoggerConfigName.invokeExact(loggerConfig))) {
+		setLoggerConfigLevel.invokeExact(loggerConfig, log4j2Level);
+	    } else {
+		// Inherited from an ancestor so far, the logger gets its own
+		loggerConfig = (Object) newLoggerConfig.invokeExact(name, log4j2Level, true);
+		addLoggerConfig.invokeExact(config, name, loggerConfig);
+	    }
+	}
+
+	private static boolean hasAncestorIn(String name, Map<String, String> levels) {
+
+	    if (name.isEmpty()) {
+		return false;
+	    }
+	    if (levels.containsKey("")) {
+		return true;
+	    }
+	    for (int i = name.lastIndexOf('.'); i > 0; i = name.lastIndexOf('.', i - 1)) {
+		if (levels.containsKey(name.substring(0, i))) {
+		    return true;
+		}
+	    }
+	    return false;
+	}
+    }
+}
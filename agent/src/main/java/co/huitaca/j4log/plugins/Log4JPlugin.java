@@ -0,0 +1,748 @@
+/*
+ * Copyright 2016 Camilo Bermúdez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.huitaca.j4log.plugins;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodHandles.Lookup;
+import java.lang.invoke.MethodType;
+import java.lang.ref.WeakReference;
+import java.security.ProtectionDomain;
+import java.util.EnumMap;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javassist.CannotCompileException;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtConstructor;
+import javassist.CtField;
+import javassist.CtMethod;
+import javassist.CtNewMethod;
+import javassist.expr.ExprEditor;
+import javassist.expr.MethodCall;
+import co.huitaca.j4log.J4LogPlugin;
+import co.huitaca.j4log.EventCounters;
+import co.huitaca.j4log.LogLevel;
+import co.huitaca.j4log.Sampling;
+import co.huitaca.j4log.async.Log4JAsyncAppender;
+import co.huitaca.j4log.instrument.LoggerHooks;
+
+public class Log4JPlugin extends J4LogPlugin {
+
+    // private static final Logger LOGGER = Logger.getLogger(Log4JPlugin.class
+    // .getName());
+
+    private static final String CONSOLE_APPENDER_LAYOUT_PATTERN = "%d{yyyyMMdd-HH:mm:ss.SSS} %-7p [%c]: %m %n";
+
+    private static final String FRAMEWORK = "log4j";
+
+    private static final String LOG4J_LOG_MANAGER = "org.apache.log4j.LogManager";
+    private static final String LOG4J_HIERARCHY = "org.apache.log4j.Hierarchy";
+    private static final String LOG4J_HIERARCHY_RESET_CONFIGURATION = "resetConfiguration";
+    private static final String LOG4J_PROPERTY_CONFIGURATOR = "org.apache.log4j.PropertyConfigurator";
+    private static final String LOG4J_DOM_CONFIGURATOR = "org.apache.log4j.xml.DOMConfigurator";
+    private static final String LOG4J_CONFIGURATOR_DO_CONFIGURE = "doConfigure";
+    private static final String LOG4J_LOGGER_REPOSITORY = "org.apache.log4j.spi.LoggerRepository";
+    private static final String LOG4J_LOGGER_FACTORY_NEW_INSTANCE = "makeNewLoggerInstance";
+    private static final String LOG4J_LEVEL = "org.apache.log4j.Level";
+    private static final String LOG4J_LOGGER_GET_NAME = "getName";
+    private static final String LOG4J_LOGGER_GET_LEVEL = "getLevel";
+    private static final String LOG4J_LOGGER_GET_EFFECTIVE_LEVEL = "getEffectiveLevel";
+    private static final String LOG4J_LOGGER_GET_PARENT = "getParent";
+    private static final String LOG4J_CATEGORY = "org.apache.log4j.Category";
+    private static final String LOG4J_CATEGORY_FORCED_LOG = "forcedLog";
+    private static final String LOG4J_CATEGORY_SET_PRIORITY = "setPriority";
+    private static final String LOG4J_CATEGORY_SET_HIERARCHY = "setHierarchy";
+    private static final String LOG4J_ROOT_LOGGER = "org.apache.log4j.spi.RootLogger";
+    private static final String LOG4J_LOGGER_SET_LEVEL = "setLevel";
+    private static final String LOG4J_LEVEL_TO_LEVEL = "toLevel";
+    private static final String LOG4J_APPENDER = "org.apache.log4j.Appender";
+    private static final String LOG4J_LOG_MANAGER_GET_ROOT_LOGGER = "getRootLogger";
+    private static final String LOG4J_LOG_MANAGER_GET_CURRENT_LOGGERS = "getCurrentLoggers";
+
+    private static final Map<String, LogLevel> LOG4J_LEVELS_MAP;
+    private static final Map<LogLevel, String> J4LOG_LEVELS_MAP;
+
+    /*
+     * Transformations source code
+     */
+    private static final String LOG4J_SAMPLING_RATE_METHOD_NAME = "_j4logSamplingRate";
+
+    // The rate comes from the logger the level comes from
+    private static final String LOG4J_SAMPLING_RATE_METHOD_SRC = "private int " + LOG4J_SAMPLING_RATE_METHOD_NAME
+	    + "() {"
+	    + "for (" + LOG4J_CATEGORY + " c = this; c != null; c = c.getParent()) {"
+	    	+ "if (c.getLevel() != null) {"
+	    	    + "return c." + Sampling.RATE_FIELD_NAME + ";"
+	    	+ "}"
+	    + "}"
+	    + "return 0;"
+	    + "}";
+
+    // Every enabled event goes through forcedLog(fqcn, level, message, t)
+    // before it gets allocated
+    private static final String LOG4J_SAMPLING_SRC = "{"
+	    + "if ($2 != null && $2.toInt() < org.apache.log4j.Priority.INFO_INT) "
+	    	+ Sampling.skipSrc(LOG4J_SAMPLING_RATE_METHOD_NAME + "()", "this", "return;")
+	    + "}";
+
+    // Events let through by the sampling, counted by level
+    private static final String LOG4J_COUNT_EVENT_SRC = "{"
+	    + "int level = $2 == null ? 0 : $2.toInt();"
+	    + EventCounters.countSrc("level >= org.apache.log4j.Priority.FATAL_INT ? " + LogLevel.FATAL.ordinal()
+		    + " : level >= org.apache.log4j.Priority.ERROR_INT ? " + LogLevel.ERROR.ordinal()
+		    + " : level >= org.apache.log4j.Priority.WARN_INT ? " + LogLevel.WARN.ordinal()
+		    + " : level >= org.apache.log4j.Priority.INFO_INT ? " + LogLevel.INFO.ordinal()
+		    + " : level >= org.apache.log4j.Priority.DEBUG_INT ? " + LogLevel.DEBUG.ordinal()
+		    + " : " + LogLevel.TRACE.ordinal())
+	    + "}";
+
+    /*
+     * The effective level is cached on each logger together with the epoch
+     * of the levels it was computed in, any level change in its hierarchy
+     * starts a new epoch. The loggers of a hierarchy share the epoch of its
+     * root, loggers outside of any hierarchy aren't cached. The epoch is read
+     * before walking the ancestors, a level changed meanwhile leaves the
+     * entry stale from the start.
+     */
+    private static final String LOG4J_LEVELS_EPOCH_FIELD_NAME = "_j4logLevelsEpoch";
+    private static final String LOG4J_LEVELS_EPOCH_FIELD_SRC = "public volatile "
+	    + "java.util.concurrent.atomic.AtomicReference " + LOG4J_LEVELS_EPOCH_FIELD_NAME + ";";
+    private static final String LOG4J_EFFECTIVE_LEVEL_FIELD_SRC = "public volatile java.util.Map.Entry "
+	    + "_j4logEffectiveLevel;";
+    private static final String LOG4J_GET_EFFECTIVE_LEVEL_SRC = "{"
+	    + "java.util.concurrent.atomic.AtomicReference epochs = this." + LOG4J_LEVELS_EPOCH_FIELD_NAME + ";"
+	    + "java.util.Map.Entry cached = this._j4logEffectiveLevel;"
+	    + "java.lang.Object epoch = epochs == null ? null : epochs.get();"
+	    + "if (cached != null && epoch != null && cached.getValue() == epoch) {"
+	    	+ "return (" + LOG4J_LEVEL + ") cached.getKey();"
+	    + "}"
+	    + "for (" + LOG4J_CATEGORY + " c = this; c != null; c = c.parent) {"
+	    	+ LOG4J_LEVEL + " level = c.level;"
+	    	+ "if (level != null) {"
+	    	    + "if (epoch != null) {"
+	    	    	+ "this._j4logEffectiveLevel = new java.util.AbstractMap$SimpleImmutableEntry(level, epoch);"
+	    	    + "}"
+	    	    + "return level;"
+	    	+ "}"
+	    + "}"
+	    + "return null;"
+	    + "}";
+    // The root of the repository starts the epochs, the others take its own
+    private static final String LOG4J_SHARE_LEVELS_EPOCH_SRC = "{"
+	    + LOG4J_CATEGORY + " root = $1 == null ? null : (" + LOG4J_CATEGORY + ") $1.getRootLogger();"
+	    + "if (root == null || root == this) {"
+	    	+ "this." + LOG4J_LEVELS_EPOCH_FIELD_NAME + " = new java.util.concurrent.atomic.AtomicReference("
+	    		+ "new java.lang.Object());"
+	    + "} else {"
+	    	+ "this." + LOG4J_LEVELS_EPOCH_FIELD_NAME + " = root." + LOG4J_LEVELS_EPOCH_FIELD_NAME + ";"
+	    + "}"
+	    + "this._j4logEffectiveLevel = null;"
+	    + "}";
+    // After the level got written
+    private static final String LOG4J_NEW_LEVELS_EPOCH_SRC = "{"
+	    + "java.util.concurrent.atomic.AtomicReference epochs = this." + LOG4J_LEVELS_EPOCH_FIELD_NAME + ";"
+	    + "if (epochs != null) {"
+	    	+ "epochs.set(new java.lang.Object());"
+	    + "}"
+	    + "}";
+
+    /*
+     * The same appender every time for a given root, log4j doesn't add an
+     * appender the root already has
+     */
+    private static String addConsoleAppenderSrc(String rootExpr) {
+
+	return "{"
+		+ LOG4J_CATEGORY + " root = " + rootExpr + ";"
+		+ "java.lang.Object appender = null;"
+		+ LoggerHooks.reportSrc(LoggerHooks.APPENDER_REQUESTED, FRAMEWORK, "root", "appender", false)
+		+ "if (root != null && appender instanceof " + LOG4J_APPENDER + ") {"
+		    + "root.addAppender((" + LOG4J_APPENDER + ") appender);"
+		+ "}"
+		+ "}";
+    }
+
+    static {
+
+	LOG4J_LEVELS_MAP = new HashMap<String, LogLevel>();
+	LOG4J_LEVELS_MAP.put("ALL", LogLevel.ALL);
+	LOG4J_LEVELS_MAP.put("TRACE", LogLevel.TRACE);
+	LOG4J_LEVELS_MAP.put("DEBUG", LogLevel.DEBUG);
+	LOG4J_LEVELS_MAP.put("INFO", LogLevel.INFO);
+	LOG4J_LEVELS_MAP.put("WARN", LogLevel.WARN);
+	LOG4J_LEVELS_MAP.put("ERROR", LogLevel.ERROR);
+	LOG4J_LEVELS_MAP.put("FATAL", LogLevel.FATAL);
+	LOG4J_LEVELS_MAP.put("OFF", LogLevel.OFF);
+
+	J4LOG_LEVELS_MAP = new HashMap<LogLevel, String>();
+	J4LOG_LEVELS_MAP.put(LogLevel.ALL, "ALL");
+	J4LOG_LEVELS_MAP.put(LogLevel.TRACE, "TRACE");
+	J4LOG_LEVELS_MAP.put(LogLevel.DEBUG, "DEBUG");
+	J4LOG_LEVELS_MAP.put(LogLevel.INFO, "INFO");
+	J4LOG_LEVELS_MAP.put(LogLevel.WARN, "WARN");
+	J4LOG_LEVELS_MAP.put(LogLevel.ERROR, "ERROR");
+	J4LOG_LEVELS_MAP.put(LogLevel.FATAL, "FATAL");
+	J4LOG_LEVELS_MAP.put(LogLevel.OFF, "OFF");
+
+    }
+
+    /*
+     * Accessors bound once per log4j Logger class, i.e. once per class loader
+     * bundling log4j. Being attached to the class itself they don't keep the
+     * class loader from being collected when the application gets undeployed.
+     */
+    private static final ClassValue<Log4JBindings> BINDINGS = new ClassValue<Log4JBindings>() {
+
+	@Override
+	protected Log4JBindings computeValue(Class<?> loggerClass) {
+	    return new Log4JBindings(loggerClass);
+	}
+    };
+
+    // The console appender of each root logger, attached again every time
+    // log4j gets configured. The appender reaches the class loader of its
+    // root, held strongly it would keep the entry, and the application,
+    // from ever being collected; the root holds it while attached.
+    private final Map<Object, WeakReference<Object>> appenders = new WeakHashMap<>();
+
+    @Override
+    protected String getLoggerName(Object logger) {
+
+	try {
+	    return BINDINGS.get(logger.getClass()).getName(logger);
+	} catch (Throwable e) {
+	    return null;
+	}
+    }
+
+    @Override
+    protected String getLoggerLevel(Object logger) {
+
+	try {
+	    return BINDINGS.get(logger.getClass()).getLevel(logger);
+	} catch (Throwable e) {
+	    return null;
+	}
+    }
+
+    @Override
+    protected void setLoggerLevel(Object logger, String j4logLevel) {
+
+	try {
+	    if (!BINDINGS.get(logger.getClass()).setLevel(logger, j4logLevel)) {
+		System.out.println("No mapping available for level " + j4logLevel);
+	    }
+	} catch (Throwable e) {
+	}
+    }
+
+    @Override
+    protected AtomicLongArray getLoggerEventCounters(Object logger) {
+
+	try {
+	    return BINDINGS.get(logger.getClass()).getEventCounters(logger);
+	} catch (Throwable e) {
+	    return null;
+	}
+    }
+
+    /**
+     * log4j loggers without a level of their own take the level of their
+     * closest ancestor having one.
+     */
+    @Override
+    protected boolean inheritsLevels() {
+	return true;
+    }
+
+    @Override
+    protected boolean inheritLoggerLevel(Object logger, String j4logLevel) {
+
+	try {
+	    return BINDINGS.get(logger.getClass()).inheritLevel(logger, j4logLevel);
+	} catch (Throwable e) {
+	    return false;
+	}
+    }
+
+    @Override
+    protected boolean hasOwnLoggerLevel(Object logger) {
+
+	try {
+	    return BINDINGS.get(logger.getClass()).hasOwnLevel(logger);
+	} catch (Throwable e) {
+	    return true;
+	}
+    }
+
+    @Override
+    protected void clearLoggerLevel(Object logger) {
+
+	try {
+	    BINDINGS.get(logger.getClass()).clearLevel(logger);
+	} catch (Throwable e) {
+	}
+    }
+
+    @Override
+    protected void activate() {
+	LoggerHooks.listen(FRAMEWORK, this);
+    }
+
+    @Override
+    public Object onAppenderRequested(Object root) {
+
+	synchronized (appenders) {
+	    WeakReference<Object> reference = appenders.get(root);
+	    Object appender = reference == null ? null : reference.get();
+	    if (appender != null) {
+		return appender;
+	    }
+	    try {
+		appender = Log4JAsyncAppender.create(root.getClass().getClassLoader(), CONSOLE_APPENDER_LAYOUT_PATTERN);
+		appenders.put(root, new WeakReference<>(appender));
+		return appender;
+	    } catch (Exception e) {
+		System.out.println("Error creating console appender.");
+		e.printStackTrace();
+		return null;
+	    }
+	}
+    }
+
+    @Override
+    public String[] getObservedClasses() {
+
+	return new String[] { LOG4J_LOG_MANAGER, LOG4J_HIERARCHY, LOG4J_CATEGORY, LOG4J_ROOT_LOGGER,
+		LOG4J_PROPERTY_CONFIGURATOR, LOG4J_DOM_CONFIGURATOR };
+    }
+
+    @Override
+    public void onClassLoading(String className, ClassLoader classLoader, Class<?> classBeingRedefined) {
+
+	if (LOG4J_LOG_MANAGER.equals(className)) {
+	    System.out.println("Log4j LogManager detected in ClassLoader: " + classLoader);
+	} else if (LOG4J_HIERARCHY.equals(className)) {
+	    System.out.println("Transforming log4j Hierarchy class in Classloader: " + classLoader);
+	} else if (LOG4J_CATEGORY.equals(className) && classBeingRedefined != null) {
+	    System.out.println("Sampled levels, event counts and cached levels unavailable for log4j in "
+		    + "Classloader: " + classLoader);
+	}
+    }
+
+    @Override
+    public byte[] onClassLoaded(String className, ClassLoader classLoader, Class<?> classBeingRedefined,
+	    ProtectionDomain protectionDomain, ClassPool pool, byte[] classfileBuffer) {
+
+	if (LOG4J_LOG_MANAGER.equals(className)) {
+	    return null;
+	}
+
+	if (LOG4J_HIERARCHY.equals(className)) {
+	    return addLoggerCreatedHook(pool, classfileBuffer, classBeingRedefined != null);
+	}
+
+	if (LOG4J_CATEGORY.equals(className)) {
+	    return classBeingRedefined != null ? null : addCategoryHooks(pool, classfileBuffer);
+	}
+
+	if (LOG4J_ROOT_LOGGER.equals(className)) {
+	    return classBeingRedefined != null ? null : addRootLoggerHooks(pool, classfileBuffer);
+	}
+
+	if (LOG4J_PROPERTY_CONFIGURATOR.equals(className) || LOG4J_DOM_CONFIGURATOR.equals(className)) {
+	    return classBeingRedefined != null ? null : addConfiguratorHooks(pool, classfileBuffer);
+	}
+
+	return null;
+    }
+
+    /**
+     * The loggers that already exist when the agent gets attached are taken
+     * from each LogManager found.
+     */
+    @Override
+    public void onClassFound(Class<?> observedClass) {
+
+	if (!LOG4J_LOG_MANAGER.equals(observedClass.getName())) {
+	    return;
+	}
+	try {
+	    onLoggerCreated(observedClass.getMethod(LOG4J_LOG_MANAGER_GET_ROOT_LOGGER).invoke(null));
+	    Enumeration<?> loggers = (Enumeration<?>) observedClass.getMethod(LOG4J_LOG_MANAGER_GET_CURRENT_LOGGERS)
+		    .invoke(null);
+	    while (loggers.hasMoreElements()) {
+		onLoggerCreated(loggers.nextElement());
+	    }
+	} catch (Exception e) {
+	    System.out.println("Error reading the loggers of log4j in ClassLoader: " + observedClass.getClassLoader());
+	    e.printStackTrace();
+	}
+    }
+
+    /*
+     * Loggers get reported by the Hierarchy rather than by their constructors:
+     * it creates each of them exactly once, under its own lock, so j4log never
+     * needs to enumerate it, and loggers instantiated outside of any hierarchy
+     * are left out.
+     */
+    private byte[] addLoggerCreatedHook(ClassPool pool, byte[] classfileBuffer, boolean retransform) {
+
+	CtClass cl = null;
+
+	try {
+
+	    cl = pool.makeClass(new java.io.ByteArrayInputStream(classfileBuffer));
+
+	    // The root logger is handed to the hierarchy on construction, the
+	    // console appender goes there only, additivity brings it the events
+	    // of every other logger. Resetting the configuration removes it, it
+	    // gets attached again. Hierarchies already built when the agent gets
+	    // attached keep their appenders.
+	    if (!retransform) {
+		LoggerHooks.addReportMethod(cl);
+		for (CtConstructor constructor : cl.getDeclaredConstructors()) {
+		    constructor.insertAfter(LoggerHooks.reportSrc(LoggerHooks.LOGGER_CREATED, FRAMEWORK, "$1"));
+		    constructor.insertAfter(addConsoleAppenderSrc("$1"));
+		}
+		for (CtMethod method : cl.getDeclaredMethods(LOG4J_HIERARCHY_RESET_CONFIGURATION)) {
+		    method.insertAfter(addConsoleAppenderSrc("$0.getRootLogger()"));
+		}
+	    }
+
+	    // Every other logger comes from the factory the first time its name
+	    // is asked for
+	    final String reportCreatedSrc = LoggerHooks.reportSrc(LoggerHooks.LOGGER_CREATED, FRAMEWORK, "$_",
+		    null, retransform);
+	    cl.instrument(new ExprEditor() {
+
+		@Override
+		public void edit(MethodCall m) throws CannotCompileException {
+		    if (LOG4J_LOGGER_FACTORY_NEW_INSTANCE.equals(m.getMethodName())) {
+			m.replace("{ $_ = $proceed($$); " + reportCreatedSrc + " }");
+		    }
+		}
+	    });
+
+	    return cl.toBytecode();
+
+	} catch (Exception e) {
+	    System.out.println("Error adding logger created hook.");
+	    e.printStackTrace();
+	} finally {
+	    if (cl != null) {
+		cl.detach();
+	    }
+	}
+
+	return null;
+    }
+
+    /*
+     * Configuring the root logger removes its appenders, the console appender
+     * included. Every doConfigure overload gets it back on the root of the
+     * repository configured, nested calls add nothing.
+     */
+    private byte[] addConfiguratorHooks(ClassPool pool, byte[] classfileBuffer) {
+
+	CtClass cl = null;
+
+	try {
+
+	    cl = pool.makeClass(new java.io.ByteArrayInputStream(classfileBuffer));
+	    LoggerHooks.addReportMethod(cl);
+	    for (CtMethod method : cl.getDeclaredMethods(LOG4J_CONFIGURATOR_DO_CONFIGURE)) {
+		CtClass[] parameters = method.getParameterTypes();
+		if (parameters.length == 2 && LOG4J_LOGGER_REPOSITORY.equals(parameters[1].getName())) {
+		    method.insertAfter(addConsoleAppenderSrc("$2 == null ? null : $2.getRootLogger()"));
+		}
+	    }
+
+	    return cl.toBytecode();
+
+	} catch (Exception e) {
+	    System.out.println("Error adding configurator hooks.");
+	    e.printStackTrace();
+	} finally {
+	    if (cl != null) {
+		cl.detach();
+	    }
+	}
+
+	return null;
+    }
+
+    /*
+     * The sampling state, the event counters and the effective level cache
+     * need new fields, only Category classes loaded after the agent can get
+     * them.
+     */
+    private byte[] addCategoryHooks(ClassPool pool, byte[] classfileBuffer) {
+
+	CtClass cl = null;
+
+	try {
+
+	    cl = pool.makeClass(new java.io.ByteArrayInputStream(classfileBuffer));
+	    for (String fieldSrc : Sampling.fieldsSrc()) {
+		cl.addField(CtField.make(fieldSrc, cl));
+	    }
+	    cl.addField(CtField.make(EventCounters.fieldSrc(), cl));
+	    for (String methodSrc : EventCounters.methodsSrc()) {
+		cl.addMethod(CtNewMethod.make(methodSrc, cl));
+	    }
+	    cl.addMethod(CtNewMethod.make(LOG4J_SAMPLING_RATE_METHOD_SRC, cl));
+	    for (CtMethod method : cl.getDeclaredMethods(LOG4J_CATEGORY_FORCED_LOG)) {
+		// Each insertion goes before the previous one, sampling comes first
+		method.insertBefore(LOG4J_COUNT_EVENT_SRC);
+		method.insertBefore(LOG4J_SAMPLING_SRC);
+	    }
+
+	    // Effective level cache
+	    cl.addField(CtField.make(LOG4J_LEVELS_EPOCH_FIELD_SRC, cl));
+	    cl.addField(CtField.make(LOG4J_EFFECTIVE_LEVEL_FIELD_SRC, cl));
+	    cl.getDeclaredMethod(LOG4J_LOGGER_GET_EFFECTIVE_LEVEL).setBody(LOG4J_GET_EFFECTIVE_LEVEL_SRC);
+	    cl.getDeclaredMethod(LOG4J_CATEGORY_SET_HIERARCHY).insertAfter(LOG4J_SHARE_LEVELS_EPOCH_SRC);
+	    for (CtMethod method : cl.getDeclaredMethods()) {
+		if (LOG4J_LOGGER_SET_LEVEL.equals(method.getName())
+			|| LOG4J_CATEGORY_SET_PRIORITY.equals(method.getName())) {
+		    method.insertAfter(LOG4J_NEW_LEVELS_EPOCH_SRC);
+		}
+	    }
+
+	    return cl.toBytecode();
+
+	} catch (Exception e) {
+	    System.out.println("Error adding Category hooks.");
+	    e.printStackTrace();
+	} finally {
+	    if (cl != null) {
+		cl.detach();
+	    }
+	}
+
+	return null;
+    }
+
+    /*
+     * The root logger sets its level without calling Category. The pool reads
+     * the original Category, it gets the epoch field only to compile against.
+     */
+    private byte[] addRootLoggerHooks(ClassPool pool, byte[] classfileBuffer) {
+
+	CtClass cl = null;
+
+	try {
+
+	    CtClass category = pool.get(LOG4J_CATEGORY);
+	    if (!hasField(category, LOG4J_LEVELS_EPOCH_FIELD_NAME)) {
+		category.addField(CtField.make(LOG4J_LEVELS_EPOCH_FIELD_SRC, category));
+	    }
+	    cl = pool.makeClass(new java.io.ByteArrayInputStream(classfileBuffer));
+	    for (CtMethod method : cl.getDeclaredMethods(LOG4J_LOGGER_SET_LEVEL)) {
+		method.insertAfter(LOG4J_NEW_LEVELS_EPOCH_SRC);
+	    }
+
+	    return cl.toBytecode();
+
+	} catch (Exception e) {
+	    System.out.println("Error adding RootLogger hooks.");
+	    e.printStackTrace();
+	} finally {
+	    if (cl != null) {
+		cl.detach();
+	    }
+	}
+
+	return null;
+    }
+
+    private static boolean hasField(CtClass cl, String name) {
+
+	try {
+	    cl.getDeclaredField(name);
+	    return true;
+	} catch (javassist.NotFoundException e) {
+	    return false;
+	}
+    }
+
+    private static String mapLevel(Object log4jLevel) {
+
+	if (log4jLevel == null) {
+	    return LogLevel.INDETERMINATE.name();
+	} else {
+	    LogLevel level = LOG4J_LEVELS_MAP.get(log4jLevel.toString().trim().toUpperCase());
+	    return level == null ? null : level.name();
+	}
+    }
+
+    private static class Log4JBindings {
+
+	private static final MethodType GET_NAME_TYPE = MethodType.methodType(String.class, Object.class);
+	private static final MethodType GET_LEVEL_TYPE = MethodType.methodType(Object.class, Object.class);
+	private static final MethodType SET_LEVEL_TYPE = MethodType.methodType(void.class, Object.class,
+		Object.class);
+
+	private final MethodHandle getName;
+	private final MethodHandle getLevel;
+	private final MethodHandle getEffectiveLevel;
+	private final MethodHandle getParent;
+	private final MethodHandle setLevel;
+	// Null if the Category class wasn't loaded after the agent
+	private final MethodHandle getSamplingRate;
+	private final MethodHandle setSamplingRate;
+	private final MethodHandle getEventCounters;
+	private final Map<LogLevel, Object> log4jLevels = new EnumMap<>(LogLevel.class);
+	private final Map<Object, String> j4logLevels = new IdentityHashMap<>();
+
+	private Log4JBindings(Class<?> loggerClass) {
+
+	    try {
+
+		// Resolve from the logger class, a lookup from a class of another
+		// loader would pin the Level type of the first log4j bound
+		Lookup lookup = MethodHandles.publicLookup().in(loggerClass);
+		Class<?> levelClass = Class.forName(LOG4J_LEVEL, false, loggerClass.getClassLoader());
+		getName = lookup.findVirtual(loggerClass, LOG4J_LOGGER_GET_NAME, MethodType.methodType(String.class))
+			.asType(GET_NAME_TYPE);
+		getLevel = lookup.findVirtual(loggerClass, LOG4J_LOGGER_GET_LEVEL, MethodType.methodType(levelClass))
+			.asType(GET_LEVEL_TYPE);
+		getEffectiveLevel = lookup.findVirtual(loggerClass, LOG4J_LOGGER_GET_EFFECTIVE_LEVEL,
+			MethodType.methodType(levelClass)).asType(GET_LEVEL_TYPE);
+		Class<?> categoryClass = Class.forName(LOG4J_CATEGORY, false, loggerClass.getClassLoader());
+		getParent = lookup.findVirtual(loggerClass, LOG4J_LOGGER_GET_PARENT,
+			MethodType.methodType(categoryClass)).asType(GET_LEVEL_TYPE);
+		setLevel = lookup.findVirtual(loggerClass, LOG4J_LOGGER_SET_LEVEL,
+			MethodType.methodType(void.class, levelClass)).asType(SET_LEVEL_TYPE);
+
+		MethodHandle toLevel = lookup.findStatic(levelClass, LOG4J_LEVEL_TO_LEVEL,
+			MethodType.methodType(levelClass, String.class));
+		for (Entry<LogLevel, String> entry : J4LOG_LEVELS_MAP.entrySet()) {
+		    Object log4jLevel = toLevel.invoke(entry.getValue());
+		    log4jLevels.put(entry.getKey(), log4jLevel);
+		    j4logLevels.put(log4jLevel, entry.getKey().name());
+		}
+
+		MethodHandle samplingRateGetter = null;
+		MethodHandle samplingRateSetter = null;
+		MethodHandle eventCountersGetter = null;
+		try {
+		    samplingRateGetter = lookup.findGetter(categoryClass, Sampling.RATE_FIELD_NAME, int.class)
+			    .asType(MethodType.methodType(int.class, Object.class));
+		    samplingRateSetter = lookup.findSetter(categoryClass, Sampling.RATE_FIELD_NAME, int.class)
+			    .asType(MethodType.methodType(void.class, Object.class, int.class));
+		    eventCountersGetter = lookup.findGetter(categoryClass, EventCounters.FIELD_NAME,
+			    AtomicLongArray.class).asType(MethodType.methodType(AtomicLongArray.class, Object.class));
+		} catch (NoSuchFieldException e) {
+		}
+		getSamplingRate = samplingRateGetter;
+		setSamplingRate = samplingRateSetter;
+		getEventCounters = eventCountersGetter;
+
+	    } catch (Throwable e) {
+		throw new IllegalStateException("Unable to bind log4j accessors for " + loggerClass, e);
+	    }
+	}
+
+	private AtomicLongArray getEventCounters(Object logger) throws Throwable {
+	    return getEventCounters == null ? null : (AtomicLongArray) getEventCounters.invokeExact(logger);
+	}
+
+	private String getName(Object logger) throws Throwable {
+	    return (String) getName.invokeExact(logger);
+	}
+
+	/*
+	 * The effective level, a logger without one of its own is reported
+	 * with the level it inherits.
+	 */
+	private String getLevel(Object logger) throws Throwable {
+
+	    Object log4jLevel = (Object) getEffectiveLevel.invokeExact(logger);
+	    String level = log4jLevel == null ? null : j4logLevels.get(log4jLevel);
+	    level = level == null ? mapLevel(log4jLevel) : level;
+	    if (getSamplingRate == null) {
+		return level;
+	    }
+
+	    // The rate of the logger holding the level
+	    Object holder = logger;
+	    while (holder != null && (Object) getLevel.invokeExact(holder) == null) {
+		holder = (Object) getParent.invokeExact(holder);
+	    }
+	    return holder == null ? level : Sampling.format(level, (int) getSamplingRate.invokeExact(holder));
+	}
+
+	private boolean setLevel(Object logger, String j4logLevel) throws Throwable {
+
+	    if (j4logLevel == null || LogLevel.INDETERMINATE.name().equals(j4logLevel)) {
+		return false;
+	    }
+	    Sampling sampling;
+	    try {
+		sampling = Sampling.parse(j4logLevel);
+	    } catch (IllegalArgumentException e) {
+		return false;
+	    }
+	    Object log4jLevel = log4jLevels.get(sampling.getLevel());
+	    if (log4jLevel == null || (sampling.isSampled() && setSamplingRate == null)) {
+		return false;
+	    }
+
+	    // Never all the events of a sampled level at once
+	    if (sampling.isSampled()) {
+		setSamplingRate.invokeExact(logger, sampling.getRate());
+	    }
+	    setLevel.invokeExact(logger, log4jLevel);
+	    if (!sampling.isSampled() && setSamplingRate != null) {
+		setSamplingRate.invokeExact(logger, 0);
+	    }
+	    return true;
+	}
+
+	/*
+	 * Loggers whose names have no logger instance in between are children of
+	 * the same parent, not necessarily the logger the level was set on.
+	 */
+	private boolean inheritLevel(Object logger, String j4logLevel) throws Throwable {
+
+	    Object parent = (Object) getParent.invokeExact(logger);
+	    if (parent == null || !j4logLevel.equals(getLevel(parent))) {
+		return false;
+	    }
+	    if ((Object) getLevel.invokeExact(logger) != null) {
+		setLevel.invokeExact(logger, (Object) null);
+	    }
+	    return true;
+	}
+
+	private boolean hasOwnLevel(Object logger) throws Throwable {
+	    return (Object) getLevel.invokeExact(logger) != null;
+	}
+
+	private void clearLevel(Object logger) throws Throwable {
+	    setLevel.invokeExact(logger, (Object) null);
+	}
+    }
+}
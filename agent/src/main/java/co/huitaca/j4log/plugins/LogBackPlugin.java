@@ -0,0 +1,380 @@
+/*
+ * Copyright 2016 Camilo Bermúdez
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.huitaca.j4log.plugins;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodHandles.Lookup;
+import java.lang.invoke.MethodType;
+import java.security.ProtectionDomain;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import javassist.CannotCompileException;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtConstructor;
+import javassist.expr.ExprEditor;
+import javassist.expr.MethodCall;
+import co.huitaca.j4log.J4LogPlugin;
+import co.huitaca.j4log.LogLevel;
+import co.huitaca.j4log.instrument.LoggerHooks;
+
+public class LogBackPlugin extends J4LogPlugin {
+
+    private static final String FRAMEWORK = "logback";
+
+    private static final String LOGBACK_LOGGER_CONTEXT = "ch.qos.logback.classic.LoggerContext";
+    private static final String LOGBACK_LOGGER_CONTEXT_ROOT = "root";
+    private static final String LOGBACK_LOGGER_CONTEXT_GET_LOGGER_LIST = "getLoggerList";
+    private static final String LOGBACK_LOGGER_CREATE_CHILD = "createChildByName";
+    private static final String LOGBACK_LEVEL = "ch.qos.logback.classic.Level";
+    private static final String LOGBACK_LOGGER_GET_NAME = "getName";
+    private static final String LOGBACK_LOGGER_GET_LEVEL = "getLevel";
+    private static final String LOGBACK_LOGGER_GET_EFFECTIVE_LEVEL = "getEffectiveLevel";
+    private static final String LOGBACK_LOGGER_SET_LEVEL = "setLevel";
+    private static final String LOGBACK_LEVEL_TO_LEVEL = "toLevel";
+    private static final String SLF4J_LOGGER_FACTORY = "org.slf4j.LoggerFactory";
+    private static final String SLF4J_LOGGER_FACTORY_GET_FACTORY = "getILoggerFactory";
+
+    private static final Map<String, LogLevel> LOGBACK_LEVELS_MAP;
+    private static final Map<LogLevel, String> J4LOG_LEVELS_MAP;
+
+    static {
+
+	LOGBACK_LEVELS_MAP = new HashMap<String, LogLevel>();
+	LOGBACK_LEVELS_MAP.put("ALL", LogLevel.ALL);
+	LOGBACK_LEVELS_MAP.put("TRACE", LogLevel.TRACE);
+	LOGBACK_LEVELS_MAP.put("DEBUG", LogLevel.DEBUG);
+	LOGBACK_LEVELS_MAP.put("INFO", LogLevel.INFO);
+	LOGBACK_LEVELS_MAP.put("WARN", LogLevel.WARN);
+	LOGBACK_LEVELS_MAP.put("ERROR", LogLevel.ERROR);
+	LOGBACK_LEVELS_MAP.put("OFF", LogLevel.OFF);
+
+	// Logback has no FATAL, ERROR is the closest
+	J4LOG_LEVELS_MAP = new HashMap<LogLevel, String>();
+	J4LOG_LEVELS_MAP.put(LogLevel.ALL, "ALL");
+	J4LOG_LEVELS_MAP.put(LogLevel.TRACE, "TRACE");
+	J4LOG_LEVELS_MAP.put(LogLevel.DEBUG, "DEBUG");
+	J4LOG_LEVELS_MAP.put(LogLevel.INFO, "INFO");
+	J4LOG_LEVELS_MAP.put(LogLevel.WARN, "WARN");
+	J4LOG_LEVELS_MAP.put(LogLevel.ERROR, "ERROR");
+	J4LOG_LEVELS_MAP.put(LogLevel.FATAL, "ERROR");
+	J4LOG_LEVELS_MAP.put(LogLevel.OFF, "OFF");
+
+    }
+
+    /*
+     * Accessors bound once per logback Logger class, i.e. once per class
+     * loader bundling logback.
+     */
+    private static final ClassValue<LogbackBindings> BINDINGS = new ClassValue<LogbackBindings>() {
+
+	@Override
+	protected LogbackBindings computeValue(Class<?> loggerClass) {
+	    return new LogbackBindings(loggerClass);
+	}
+    };
+
+    @Override
+    protected String getLoggerName(Object logger) {
+
+	try {
+	    return BINDINGS.get(logger.getClass()).getName(logger);
+	} catch (Throwable e) {
+	    return null;
+	}
+    }
+
+    @Override
+    protected String getLoggerLevel(Object logger) {
+
+	try {
+	    return BINDINGS.get(logger.getClass()).getLevel(logger);
+	} catch (Throwable e) {
+	    return null;
+	}
+    }
+
+    @Override
+    protected void setLoggerLevel(Object logger, String j4logLevel) {
+
+	try {
+	    if (!BINDINGS.get(logger.getClass()).setLevel(logger, j4logLevel)) {
+		System.out.println("No mapping available for level " + j4logLevel);
+	    }
+	} catch (Throwable e) {
+	}
+    }
+
+    /**
+     * Logback loggers without a level of their own follow their parent, the
+     * context propagates every change down the tree.
+     */
+    @Override
+    protected boolean inheritsLevels() {
+	return true;
+    }
+
+    @Override
+    protected boolean inheritLoggerLevel(Object logger, String j4logLevel) {
+
+	try {
+	    return BINDINGS.get(logger.getClass()).inheritLevel(logger, j4logLevel);
+	} catch (Throwable e) {
+	    return false;
+	}
+    }
+
+    @Override
+    protected boolean hasOwnLoggerLevel(Object logger) {
+
+	try {
+	    return BINDINGS.get(logger.getClass()).hasOwnLevel(logger);
+	} catch (Throwable e) {
+	    return true;
+	}
+    }
+
+    @Override
+    protected void clearLoggerLevel(Object logger) {
+
+	try {
+	    BINDINGS.get(logger.getClass()).clearLevel(logger);
+	} catch (Throwable e) {
+	}
+    }
+
+    @Override
+    protected void activate() {
+	LoggerHooks.listen(FRAMEWORK, this);
+    }
+
+    @Override
+    public String[] getObservedClasses() {
+
+	return new String[] { LOGBACK_LOGGER_CONTEXT };
+    }
+
+    @Override
+    public void onClassLoading(String className, ClassLoader classLoader, Class<?> classBeingRedefined) {
+
+	if (LOGBACK_LOGGER_CONTEXT.equals(className)) {
+	    System.out.println("Transforming logback LoggerContext class in Classloader: " + classLoader);
+	}
+    }
+
+    @Override
+    public byte[] onClassLoaded(String className, ClassLoader classLoader, Class<?> classBeingRedefined,
+	    ProtectionDomain protectionDomain, ClassPool pool, byte[] classfileBuffer) {
+
+	if (LOGBACK_LOGGER_CONTEXT.equals(className)) {
+	    return addLoggerCreatedHook(pool, classfileBuffer, classBeingRedefined != null);
+	}
+
+	return null;
+    }
+
+    /**
+     * The loggers that already exist when the agent gets attached are taken
+     * from the context bound to SLF4J in the class loader of each
+     * LoggerContext found.
+     */
+    @Override
+    public void onClassFound(Class<?> observedClass) {
+
+	if (!LOGBACK_LOGGER_CONTEXT.equals(observedClass.getName())) {
+	    return;
+	}
+	try {
+	    Class<?> loggerFactory = Class.forName(SLF4J_LOGGER_FACTORY, true, observedClass.getClassLoader());
+	    Object context = loggerFactory.getMethod(SLF4J_LOGGER_FACTORY_GET_FACTORY).invoke(null);
+	    if (!observedClass.isInstance(context)) {
+		return;
+	    }
+	    for (Object logger : (List<?>) observedClass.getMethod(LOGBACK_LOGGER_CONTEXT_GET_LOGGER_LIST).invoke(
+		    context)) {
+		onLoggerCreated(logger);
+	    }
+	} catch (Exception e) {
+	    System.out.println("Error reading the loggers of logback in ClassLoader: "
+		    + observedClass.getClassLoader());
+	    e.printStackTrace();
+	}
+    }
+
+    /*
+     * Every logger of a context but the root is created by its parent, called
+     * by the context the first time its name is asked for, right before it
+     * goes into the logger cache.
+     */
+    private byte[] addLoggerCreatedHook(ClassPool pool, byte[] classfileBuffer, boolean retransform) {
+
+	CtClass cl = null;
+
+	try {
+
+	    cl = pool.makeClass(new java.io.ByteArrayInputStream(classfileBuffer));
+
+	    // Contexts already built when the agent gets attached have their
+	    // root listed by onClassFound
+	    if (!retransform) {
+		LoggerHooks.addReportMethod(cl);
+		for (CtConstructor constructor : cl.getDeclaredConstructors()) {
+		    constructor.insertAfter(LoggerHooks.reportSrc(LoggerHooks.LOGGER_CREATED, FRAMEWORK,
+			    LOGBACK_LOGGER_CONTEXT_ROOT));
+		}
+	    }
+
+	    final String reportCreatedSrc = LoggerHooks.reportSrc(LoggerHooks.LOGGER_CREATED, FRAMEWORK, "$_",
+		    null, retransform);
+	    cl.instrument(new ExprEditor() {
+
+		@Override
+		public void edit(MethodCall m) throws CannotCompileException {
+		    if (LOGBACK_LOGGER_CREATE_CHILD.equals(m.getMethodName())) {
+			m.replace("{ $_ = $proceed($$); " + reportCreatedSrc + " }");
+		    }
+		}
+	    });
+
+	    return cl.toBytecode();
+
+	} catch (Exception e) {
+	    System.out.println("Error adding logger created hook.");
+	    e.printStackTrace();
+	} finally {
+	    if (cl != null) {
+		cl.detach();
+	    }
+	}
+
+	return null;
+    }
+
+    private static String mapLevel(Object logbackLevel) {
+
+	if (logbackLevel == null) {
+	    return LogLevel.INDETERMINATE.name();
+	} else {
+	    LogLevel level = LOGBACK_LEVELS_MAP.get(logbackLevel.toString().trim().toUpperCase());
+	    return level == null ? null : level.name();
+	}
+    }
+
+    private static class LogbackBindings {
+
+	private static final MethodType GET_NAME_TYPE = MethodType.methodType(String.class, Object.class);
+	private static final MethodType GET_LEVEL_TYPE = MethodType.methodType(Object.class, Object.class);
+	private static final MethodType SET_LEVEL_TYPE = MethodType.methodType(void.class, Object.class,
+		Object.class);
+
+	private final MethodHandle getName;
+	private final MethodHandle getLevel;
+	private final MethodHandle getEffectiveLevel;
+	private final MethodHandle setLevel;
+	private final Map<LogLevel, Object> logbackLevels = new EnumMap<>(LogLevel.class);
+	private final Map<Object, String> j4logLevels = new IdentityHashMap<>();
+
+	private LogbackBindings(Class<?> loggerClass) {
+
+	    try {
+
+		Lookup lookup = MethodHandles.publicLookup().in(loggerClass);
+		Class<?> levelClass = Class.forName(LOGBACK_LEVEL, false, loggerClass.getClassLoader());
+		getName = lookup.findVirtual(loggerClass, LOGBACK_LOGGER_GET_NAME,
+			MethodType.methodType(String.class)).asType(GET_NAME_TYPE);
+		getLevel = lookup.findVirtual(loggerClass, LOGBACK_LOGGER_GET_LEVEL, MethodType.methodType(levelClass))
+			.asType(GET_LEVEL_TYPE);
+		getEffectiveLevel = lookup.findVirtual(loggerClass, LOGBACK_LOGGER_GET_EFFECTIVE_LEVEL,
+			MethodType.methodType(levelClass)).asType(GET_LEVEL_TYPE);
+		setLevel = lookup.findVirtual(loggerClass, LOGBACK_LOGGER_SET_LEVEL,
+			MethodType.methodType(void.class, levelClass)).asType(SET_LEVEL_TYPE);
+
+		MethodHandle toLevel = lookup.findStatic(levelClass, LOGBACK_LEVEL_TO_LEVEL,
+			MethodType.methodType(levelClass, String.class));
+		for (Entry<LogLevel, String> entry : J4LOG_LEVELS_MAP.entrySet()) {
+		    Object logbackLevel = toLevel.invoke(entry.getValue());
+		    logbackLevels.put(entry.getKey(), logbackLevel);
+		    if (entry.getKey() != LogLevel.FATAL) {
+			j4logLevels.put(logbackLevel, entry.getKey().name());
+		    }
+		}
+
+	    } catch (Throwable e) {
+		throw new IllegalStateException("Unable to bind logback accessors for " + loggerClass, e);
+	    }
+	}
+
+	private String getName(Object logger) throws Throwable {
+	    return (String) getName.invokeExact(logger);
+	}
+
+	/*
+	 * The effective level, a logger without one of its own is reported
+	 * with the level it inherits.
+	 */
+	private String getLevel(Object logger) throws Throwable {
+
+	    Object logbackLevel = (Object) getEffectiveLevel.invokeExact(logger);
+	    String level = logbackLevel == null ? null : j4logLevels.get(logbackLevel);
+	    return level == null ? mapLevel(logbackLevel) : level;
+	}
+
+	private boolean setLevel(Object logger, String j4logLevel) throws Throwable {
+
+	    if (j4logLevel == null || LogLevel.INDETERMINATE.name().equals(j4logLevel)) {
+		return false;
+	    }
+	    Object logbackLevel;
+	    try {
+		logbackLevel = logbackLevels.get(LogLevel.valueOf(j4logLevel));
+	    } catch (IllegalArgumentException e) {
+		// Sampled levels aren't supported by logback loggers
+		return false;
+	    }
+	    if (logbackLevel == null) {
+		return false;
+	    }
+	    setLevel.invokeExact(logger, logbackLevel);
+	    return true;
+	}
+
+	/*
+	 * Logback loggers don't expose their parent, the level is cleared and
+	 * the one inherited checked afterwards.
+	 */
+	private boolean inheritLevel(Object logger, String j4logLevel) throws Throwable {
+
+	    if ((Object) getLevel.invokeExact(logger) != null) {
+		setLevel.invokeExact(logger, (Object) null);
+	    }
+	    return j4logLevel.equals(getLevel(logger));
+	}
+
+	private boolean hasOwnLevel(Object logger) throws Throwable {
+	    return (Object) getLevel.invokeExact(logger) != null;
+	}
+
+	private void clearLevel(Object logger) throws Throwable {
+	    setLevel.invokeExact(logger, (Object) null);
+	}
+    }
+}
@@ -17,19 +17,34 @@ package co.huitaca.j4log.plugins;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
 
 import co.huitaca.j4log.J4LogPlugin;
 
+/**
+ * Plug-ins are listed in
+ * <code>META-INF/services/co.huitaca.j4log.J4LogPlugin</code>. They're only
+ * constructed here, each one gets activated when its library shows up.
+ */
 public class PluginManager {
 
 	private static List<J4LogPlugin> PLUGINS;
 
 	static {
 		PLUGINS = new ArrayList<>();
-		PLUGINS.add(new Log4JPlugin());
-//		PLUGINS.add(new JULPlugin());
-		PLUGINS.add(new ApacheJULIPlugin());
+		Iterator<J4LogPlugin> plugins = ServiceLoader.load(J4LogPlugin.class,
+				PluginManager.class.getClassLoader()).iterator();
+		while (plugins.hasNext()) {
+			try {
+				PLUGINS.add(plugins.next());
+			} catch (ServiceConfigurationError e) {
+				System.out.println("Error loading j4log plug-in.");
+				e.printStackTrace();
+			}
+		}
 		PLUGINS = Collections.unmodifiableList(PLUGINS);
 
 	}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2016 Camilo Bermúdez
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.huitaca.j4log.timer;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Single thread running tasks after a delay, with the precision of a tick.
+ * Timeouts hash into the bucket of the wheel matching their deadline, each
+ * tick only looks at one bucket, so scheduling and cancelling cost the same
+ * no matter how many timeouts are pending.
+ *
+ * The thread gets started with the first timeout and never stops, it's a
+ * daemon. Ticks elapsed before it starts are caught up at once.
+ */
+public class HashedWheelTimer implements Runnable {
+
+    private final long tickNanos;
+    private final int mask;
+    private final Queue<Timeout>[] wheel;
+    private final Queue<Timeout> scheduled = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean started = new AtomicBoolean();
+    private final Thread thread;
+    private final long startTime = System.nanoTime();
+    private long tick;
+
+    /**
+     * @param name
+     *            the name of the thread.
+     * @param tickDuration
+     * @param unit
+     * @param wheelSize
+     *            the number of buckets, rounded up to a power of two.
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public HashedWheelTimer(String name, long tickDuration, TimeUnit unit, int wheelSize) {
+
+	if (tickDuration <= 0 || wheelSize <= 0) {
+	    throw new IllegalArgumentException("Tick duration and wheel size must be positive");
+	}
+	int size = Integer.highestOneBit(wheelSize);
+	size = size < wheelSize ? size << 1 : size;
+	this.tickNanos = unit.toNanos(tickDuration);
+	this.mask = size - 1;
+	this.wheel = new Queue[size];
+	for (int i = 0; i < size; i++) {
+	    wheel[i] = new ArrayDeque<>();
+	}
+	this.thread = new Thread(this, name);
+	this.thread.setDaemon(true);
+    }
+
+    /**
+     * Runs the task on the timer thread once the delay has elapsed. Tasks
+     * should be short, they delay the ones following them.
+     *
+     * @param task
+     * @param delay
+     * @param unit
+     * @return
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+
+	if (started.compareAndSet(false, true)) {
+	    thread.start();
+	}
+	Timeout timeout = new Timeout(task, System.nanoTime() - startTime + unit.toNanos(Math.max(delay, 0)));
+	scheduled.add(timeout);
+	return timeout;
+    }
+
+    @Override
+    public void run() {
+
+	while (true) {
+	    waitForNextTick();
+	    transferScheduled();
+	    expire(wheel[(int) (tick & mask)]);
+	    tick++;
+	}
+    }
+
+    private void waitForNextTick() {
+
+	long deadline = tickNanos * (tick + 1);
+	long sleepNanos;
+	while ((sleepNanos = deadline - (System.nanoTime() - startTime)) > 0) {
+	    try {
+		TimeUnit.NANOSECONDS.sleep(sleepNanos);
+	    } catch (InterruptedException e) {
+		// Nothing stops the timer
+	    }
+	}
+    }
+
+    /*
+     * Timeouts are only put into the wheel by its own thread, the buckets
+     * need no synchronization.
+     */
+    private void transferScheduled() {
+
+	Timeout timeout;
+	while ((timeout = scheduled.poll()) != null) {
+	    if (timeout.isDone()) {
+		continue;
+	    }
+	    long ticks = timeout.deadline / tickNanos;
+	    timeout.remainingRounds = (ticks - tick) / wheel.length;
+	    // Already late, the current bucket gets it
+	    wheel[(int) (Math.max(ticks, tick) & mask)].add(timeout);
+	}
+    }
+
+    private void expire(Queue<Timeout> bucket) {
+
+	Iterator<Timeout> iterator = bucket.iterator();
+	while (iterator.hasNext()) {
+	    Timeout timeout = iterator.next();
+	    if (timeout.isDone()) {
+		iterator.remove();
+	    } else if (timeout.remainingRounds <= 0) {
+		iterator.remove();
+		timeout.expire();
+	    } else {
+		timeout.remainingRounds--;
+	    }
+	}
+    }
+
+    public static class Timeout {
+
+	private final Runnable task;
+	private final long deadline;
+	private final AtomicBoolean done = new AtomicBoolean();
+	private long remainingRounds;
+
+	private Timeout(Runnable task, long deadline) {
+	    this.task = task;
+	    this.deadline = deadline;
+	}
+
+	/**
+	 * @return <code>false</code> if the task already ran or was
+	 *         cancelled.
+	 */
+	public boolean cancel() {
+	    return done.compareAndSet(false, true);
+	}
+
+	/**
+	 * @return whether the task ran or was cancelled.
+	 */
+	public boolean isDone() {
+	    return done.get();
+	}
+
+	private void expire() {
+
+	    if (!done.compareAndSet(false, true)) {
+		return;
+	    }
+	    try {
+		task.run();
+	    } catch (Throwable e) {
+		System.out.println("Error running timer task.");
+		e.printStackTrace();
+	    }
+	}
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2016 Camilo Bermúdez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.huitaca.j4log.benchmark;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import co.huitaca.j4log.J4LogPlugin;
+import co.huitaca.j4log.plugins.JULPlugin;
+import co.huitaca.j4log.plugins.Log4JPlugin;
+import co.huitaca.j4log.plugins.PluginManager;
+
+/**
+ * Builds synthetic logger hierarchies and reports them to the plug-ins the
+ * same way the agent hooks would, so benchmarks don't need the agent.
+ */
+public class Hierarchies {
+
+    public static final String ROOT_PACKAGE = "com.acme";
+
+    private static final String LOG4J_LOGGER = "org.apache.log4j.Logger";
+    private static final String LOG4J_LOG_MANAGER = "org.apache.log4j.LogManager";
+
+    /**
+     * Spreads loggers over 100 packages of 100 sub-packages each, 3 levels
+     * below {@link #ROOT_PACKAGE}.
+     * 
+     * @param i
+     * @return
+     */
+    public static String loggerName(int i) {
+	return ROOT_PACKAGE + ".p" + (i % 100) + ".s" + (i / 100 % 100) + ".C" + i;
+    }
+
+    /**
+     * Creates log4j loggers spread across several class loaders, each one
+     * with its own copy of log4j as web applications do.
+     * 
+     * @param loggers
+     *            total number of loggers.
+     * @param classLoaders
+     * @return the logger instances, to keep them reachable.
+     * @throws Exception
+     */
+    public static List<Object> createLog4jLoggers(int loggers, int classLoaders) throws Exception {
+
+	URL log4jJar = Class.forName(LOG4J_LOGGER).getProtectionDomain().getCodeSource().getLocation();
+	J4LogPlugin plugin = getPlugin(Log4JPlugin.class);
+	List<Object> instances = new ArrayList<>(loggers);
+	int perClassLoader = Math.max(1, loggers / classLoaders);
+	for (int c = 0; c < classLoaders; c++) {
+
+	    ClassLoader classLoader = new URLClassLoader(new URL[] { log4jJar }, null);
+	    Class<?> logManager = Class.forName(LOG4J_LOG_MANAGER, true, classLoader);
+	    Object root = logManager.getMethod("getRootLogger").invoke(null);
+	    plugin.onLoggerCreated(root);
+	    instances.add(root);
+
+	    for (int i = c * perClassLoader; i < (c + 1) * perClassLoader && i < loggers; i++) {
+		Object logger = logManager.getMethod("getLogger", String.class).invoke(null, loggerName(i));
+		plugin.onLoggerCreated(logger);
+		instances.add(logger);
+	    }
+	}
+
+	return instances;
+    }
+
+    /**
+     * Creates JUL loggers, JUL keeps them weakly so the caller must hold the
+     * returned list.
+     * 
+     * @param loggers
+     * @return
+     */
+    public static List<Logger> createJulLoggers(int loggers) {
+
+	J4LogPlugin plugin = getPlugin(JULPlugin.class);
+	List<Logger> instances = new ArrayList<>(loggers);
+	for (int i = 0; i < loggers; i++) {
+	    Logger logger = Logger.getLogger(loggerName(i));
+	    if (plugin != null) {
+		plugin.onLoggerCreated(logger);
+	    }
+	    instances.add(logger);
+	}
+
+	return instances;
+    }
+
+    public static J4LogPlugin getPlugin(Class<? extends J4LogPlugin> type) {
+
+	for (J4LogPlugin plugin : PluginManager.getPlugins()) {
+	    if (type.isInstance(plugin)) {
+		return plugin;
+	    }
+	}
+
+	return null;
+    }
+
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2016 Camilo Bermúdez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.huitaca.j4log.benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures <code>java.util.logging.Logger.getLevel()</code>, which the agent
+ * instruments. Run it twice, with and without
+ * <code>-jvmArgsAppend -javaagent:../agent/target/j4log-agent-&lt;version&gt;.jar</code>,
+ * to see what the injected code costs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JulGetLevelBenchmark {
+
+    @Param({ "1000", "100000" })
+    private int loggers;
+
+    private List<Logger> julLoggers;
+    private int next;
+
+    @Setup
+    public void createHierarchy() {
+	julLoggers = Hierarchies.createJulLoggers(loggers);
+    }
+
+    @Benchmark
+    public Level getLevel() {
+	next = next + 1 == julLoggers.size() ? 0 : next + 1;
+	return julLoggers.get(next).getLevel();
+    }
+
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2016 Camilo Bermúdez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.huitaca.j4log.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the level checks of a log4j logger <code>depth</code> levels
+ * below the root, inheriting its level from it. Without the agent
+ * <code>getEffectiveLevel()</code> walks them all, with it the level is
+ * cached. Run it twice, with and without
+ * <code>-jvmArgsAppend -javaagent:../agent/target/j4log-agent-&lt;version&gt;.jar</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Log4jEffectiveLevelBenchmark {
+
+    @Param({ "1", "12" })
+    private int depth;
+
+    private Logger logger;
+
+    @Setup
+    public void createHierarchy() {
+
+	Logger.getRootLogger().setLevel(Level.INFO);
+	StringBuilder name = new StringBuilder();
+	for (int i = 1; i <= depth; i++) {
+	    name.append(i == 1 ? "" : ".").append("l").append(i);
+	    // Every ancestor exists, so each one is a step of the walk
+	    logger = Logger.getLogger(name.toString());
+	}
+    }
+
+    @Benchmark
+    public boolean isDebugEnabled() {
+	return logger.isDebugEnabled();
+    }
+
+    @Benchmark
+    public Level getEffectiveLevel() {
+	return logger.getEffectiveLevel();
+    }
+
+}
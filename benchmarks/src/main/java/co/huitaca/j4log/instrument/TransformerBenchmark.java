@@ -0,0 +1,104 @@
+/*
+ * Copyright 2016 Camilo Bermúdez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.huitaca.j4log.instrument;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javassist.bytecode.Descriptor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import co.huitaca.j4log.J4LogPlugin;
+import co.huitaca.j4log.plugins.PluginManager;
+
+/**
+ * Measures {@link J4LogAgent.Transformer#transform} for the observed log4j
+ * classes and for the far more common case of a class nobody observes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransformerBenchmark {
+
+    @Param({ "org.apache.log4j.Logger", "org.apache.log4j.Hierarchy", "org.apache.log4j.Category" })
+    private String className;
+
+    private J4LogAgent.Transformer transformer;
+    private ClassLoader classLoader;
+    private String jvmClassName;
+    private byte[] classfile;
+
+    @Setup
+    public void prepare() throws Exception {
+
+	Map<String, List<J4LogPlugin>> observedClasses = new HashMap<>();
+	for (J4LogPlugin plugin : PluginManager.getPlugins()) {
+	    for (String observed : plugin.getObservedClasses()) {
+		String jvmName = Descriptor.toJvmName(observed);
+		if (!observedClasses.containsKey(jvmName)) {
+		    observedClasses.put(jvmName, new ArrayList<J4LogPlugin>());
+		}
+		observedClasses.get(jvmName).add(plugin);
+	    }
+	}
+	transformer = new J4LogAgent.Transformer(observedClasses);
+
+	URL log4jJar = Class.forName(className).getProtectionDomain().getCodeSource().getLocation();
+	classLoader = new URLClassLoader(new URL[] { log4jJar }, null);
+	jvmClassName = Descriptor.toJvmName(className);
+	classfile = read(classLoader, jvmClassName + ".class");
+    }
+
+    @Benchmark
+    public byte[] transform() throws Exception {
+	return transformer.transform(classLoader, jvmClassName, null, null, classfile);
+    }
+
+    private static byte[] read(ClassLoader classLoader, String resource) throws Exception {
+
+	try (InputStream in = classLoader.getResourceAsStream(resource)) {
+	    ByteArrayOutputStream out = new ByteArrayOutputStream();
+	    byte[] buffer = new byte[8192];
+	    int read;
+	    while ((read = in.read(buffer)) > 0) {
+		out.write(buffer, 0, read);
+	    }
+	    return out.toByteArray();
+	}
+    }
+
+}
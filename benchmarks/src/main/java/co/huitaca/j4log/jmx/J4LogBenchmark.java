@@ -0,0 +1,147 @@
+/*
+ * Copyright 2016 Camilo Bermúdez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.huitaca.j4log.jmx;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import co.huitaca.j4log.LogLevel;
+import co.huitaca.j4log.benchmark.Hierarchies;
+
+/**
+ * Measures the {@link J4LogMBean} operations over synthetic log4j and JUL
+ * hierarchies. Run with <code>-prof gc</code> to get the allocation rates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class J4LogBenchmark {
+
+    @Param({ "1000", "10000", "100000", "1000000" })
+    private int loggers;
+
+    @Param({ "1", "8" })
+    private int classLoaders;
+
+    private final J4Log j4log = J4Log.getInstance();
+
+    private List<Object> log4jLoggers;
+    private List<java.util.logging.Logger> julLoggers;
+    private String existingLogger;
+    private String subtreeRoot;
+    private String lastOfFirstPage;
+    private String[] someLoggers;
+    private Map<String, String> debugLevels;
+    private Map<String, String> infoLevels;
+    private boolean debug;
+
+    @Setup(Level.Trial)
+    public void createHierarchies() throws Exception {
+
+	log4jLoggers = Hierarchies.createLog4jLoggers(loggers, classLoaders);
+	julLoggers = Hierarchies.createJulLoggers(loggers);
+	existingLogger = Hierarchies.loggerName(loggers / 2);
+	subtreeRoot = Hierarchies.ROOT_PACKAGE + ".p1";
+	lastOfFirstPage = ((NavigableMap<String, String>) j4log.getLoggersAfter(null, 100)).lastKey();
+
+	someLoggers = new String[40];
+	debugLevels = new HashMap<>();
+	infoLevels = new HashMap<>();
+	for (int i = 0; i < someLoggers.length; i++) {
+	    someLoggers[i] = Hierarchies.loggerName(i * (loggers / someLoggers.length));
+	    debugLevels.put(Hierarchies.ROOT_PACKAGE + ".p" + i, LogLevel.DEBUG.name());
+	    infoLevels.put(Hierarchies.ROOT_PACKAGE + ".p" + i, LogLevel.INFO.name());
+	}
+    }
+
+    @Benchmark
+    public Map<String, String> getLoggers() {
+	return j4log.getLoggers();
+    }
+
+    @Benchmark
+    public Map<String, String> getLoggersLike() {
+	return j4log.getLoggersLike(".s1.");
+    }
+
+    @Benchmark
+    public int countLoggers() {
+	return j4log.countLoggers();
+    }
+
+    @Benchmark
+    public String getLevel() {
+	return j4log.getLevel(existingLogger);
+    }
+
+    @Benchmark
+    public Map<String, String> getLoggersAfter() {
+	return j4log.getLoggersAfter(lastOfFirstPage, 100);
+    }
+
+    @Benchmark
+    public Map<String, String> getLoggersPage() {
+	return j4log.getLoggers(loggers / 2, 100);
+    }
+
+    @Benchmark
+    public int countLoggersLike() {
+	return j4log.countLoggersLike(".s1.");
+    }
+
+    @Benchmark
+    public Map<String, String> getLevels() {
+	return j4log.getLevels(someLoggers);
+    }
+
+    @Benchmark
+    public void setLevel() {
+	debug = !debug;
+	j4log.setLevel(subtreeRoot, debug ? LogLevel.DEBUG.name() : LogLevel.INFO.name());
+    }
+
+    @Benchmark
+    public void setLevelForced() {
+	debug = !debug;
+	j4log.setLevel(subtreeRoot, debug ? LogLevel.DEBUG.name() : LogLevel.INFO.name(), true);
+    }
+
+    @Benchmark
+    public Map<String, String> setLevels() {
+	debug = !debug;
+	return j4log.setLevels(debug ? debugLevels : infoLevels);
+    }
+
+}